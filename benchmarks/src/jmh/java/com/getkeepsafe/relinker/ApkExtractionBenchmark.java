@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the {@link ApkLibraryInstaller} extracts a library, from the lookup to the
+ * verified and renamed copy. Besides extractions per second, the {@code bytes} counter reports
+ * the throughput in bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ApkExtractionBenchmark {
+    private static final String LIBRARY = "lib0.so";
+
+    @Param({"1", "10", "50"})
+    public int megabytes;
+
+    @Param({"false", "true"})
+    public boolean stored;
+
+    private File directory;
+    private File destination;
+    private ReLinker.Platform platform;
+    private ApkLibraryInstaller installer;
+    private ReLinkerInstance instance;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Extracted {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("relinker-extract", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        final File apkDir = new File(directory, "apks");
+        final File workaroundDir = new File(directory, "lib");
+        apkDir.mkdir();
+        workaroundDir.mkdir();
+
+        final String[] apks = ApkFixtures.writeApp(apkDir, 1000, false,
+                ApkFixtures.libraries(1, megabytes * 1024 * 1024), stored);
+        destination = new File(workaroundDir, LIBRARY);
+        platform = ApkFixtures.platform(apks, workaroundDir);
+        installer = new ApkLibraryInstaller();
+        instance = new ReLinkerInstance(new SystemLibraryLoader(), installer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        LibraryIndex.clear();
+        ZipFileCache.evictIdle(0);
+        ApkFixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void installLibrary(final Extracted extracted) {
+        installer.installLibrary(platform, ApkFixtures.DEVICE_ABIS, LIBRARY, destination, instance);
+        extracted.bytes += destination.length();
+    }
+}
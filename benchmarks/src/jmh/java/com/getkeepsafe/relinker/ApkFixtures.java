@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates apps to benchmark the {@link ApkLibraryInstaller} with, since the APK used by the
+ * unit tests holds a single tiny library. Libraries are either stored page aligned, as with
+ * {@code android:extractNativeLibs="false"}, or deflated.
+ */
+final class ApkFixtures {
+    /** The ABIs every app has libraries for, the last one being the one looked up */
+    static final String[] ABIS = {"arm64-v8a", "armeabi-v7a", "x86", "x86_64"};
+    static final String[] DEVICE_ABIS = {"x86_64"};
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int RESOURCE_SIZE = 256;
+
+    private ApkFixtures() {}
+
+    /**
+     * Writes an app with {@code resources} other entries and the given libraries for each of
+     * {@link #ABIS}. The libraries go either in the base APK, or in one split APK per ABI the
+     * way app bundles deliver them.
+     *
+     * @param libraries The mapped names of the libraries, and their contents
+     * @return The paths of the base APK followed by its splits
+     */
+    static String[] writeApp(final File directory,
+                             final int resources,
+                             final boolean splitPerAbi,
+                             final Map<String, byte[]> libraries,
+                             final boolean stored) throws IOException {
+        final List<String> apks = new ArrayList<String>();
+        final ApkWriter base = new ApkWriter(new File(directory, "base.apk"));
+        try {
+            final Random random = new Random(42);
+            final byte[] resource = new byte[RESOURCE_SIZE];
+            for (int i = 0; i < resources; ++i) {
+                random.nextBytes(resource);
+                base.write("res/raw/resource_" + i + ".bin", resource, false);
+            }
+
+            if (!splitPerAbi) {
+                for (final String abi : ABIS) {
+                    base.writeLibraries(abi, libraries, stored);
+                }
+            }
+        } finally {
+            base.close();
+        }
+        apks.add(base.file.getAbsolutePath());
+
+        if (splitPerAbi) {
+            for (final String abi : ABIS) {
+                final ApkWriter split = new ApkWriter(new File(directory,
+                        "split_config." + abi.replace('-', '_') + ".apk"));
+                try {
+                    split.writeLibraries(abi, libraries, stored);
+                } finally {
+                    split.close();
+                }
+                apks.add(split.file.getAbsolutePath());
+            }
+        }
+
+        return apks.toArray(new String[apks.size()]);
+    }
+
+    /**
+     * @return {@code count} libraries named {@code lib<i>.so} of {@code size} bytes each
+     */
+    static Map<String, byte[]> libraries(final int count, final int size) {
+        final Map<String, byte[]> libraries = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < count; ++i) {
+            libraries.put("lib" + i + ".so", libraryData(size, i));
+        }
+        return libraries;
+    }
+
+    /**
+     * @return Runs of a few distinct bytes, which deflate roughly as well as real code does
+     */
+    static byte[] libraryData(final int size, final long seed) {
+        final byte[] data = new byte[size];
+        final Random random = new Random(seed);
+        for (int i = 0; i < size; i += 64) {
+            Arrays.fill(data, i, Math.min(size, i + 64), (byte) random.nextInt(16));
+        }
+        return data;
+    }
+
+    /**
+     * A {@link ReLinker.Platform} for an app made of {@code apks}, extracting to
+     * {@code directory}
+     */
+    static ReLinker.Platform platform(final String[] apks, final File directory) {
+        return new ReLinker.Platform() {
+            @Override
+            public String[] sourceApks() {
+                return apks;
+            }
+
+            @Override
+            public File workaroundLibDir() {
+                return directory;
+            }
+
+            @Override
+            public boolean canLoadFromApk() {
+                return true;
+            }
+        };
+    }
+
+    static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class ApkWriter {
+        final File file;
+        private final CountingOutputStream counter;
+        private final ZipOutputStream out;
+
+        ApkWriter(final File file) throws IOException {
+            this.file = file;
+            this.counter = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            this.out = new ZipOutputStream(counter);
+        }
+
+        void writeLibraries(final String abi,
+                            final Map<String, byte[]> libraries,
+                            final boolean stored) throws IOException {
+            for (final Map.Entry<String, byte[]> library : libraries.entrySet()) {
+                write("lib/" + abi + "/" + library.getKey(), library.getValue(), stored);
+            }
+        }
+
+        void write(final String name, final byte[] data, final boolean stored)
+                throws IOException {
+            final ZipEntry entry = new ZipEntry(name);
+            if (stored) {
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCrc(crc.getValue());
+
+                // Pad the local header with an alignment extra field (0xD935, as written by
+                // zipalign) so that the data starts on a page boundary
+                final long headerEnd = counter.count + 30 + name.length() + 4;
+                final int padding = (int) ((PAGE_SIZE - headerEnd % PAGE_SIZE) % PAGE_SIZE);
+                final byte[] extra = new byte[4 + padding];
+                extra[0] = (byte) 0x35;
+                extra[1] = (byte) 0xd9;
+                extra[2] = (byte) padding;
+                extra[3] = (byte) (padding >> 8);
+                entry.setExtra(extra);
+            }
+
+            out.putNextEntry(entry);
+            out.write(data);
+            out.closeEntry();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
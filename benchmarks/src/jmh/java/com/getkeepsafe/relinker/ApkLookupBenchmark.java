@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the {@link ApkLibraryInstaller} takes to find a library in the APKs of an
+ * app, depending on how many entries they hold and whether the libraries are in split APKs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ApkLookupBenchmark {
+    private static final String LIBRARY = "lib7.so";
+
+    @Param({"1000", "10000"})
+    public int resources;
+
+    @Param({"false", "true"})
+    public boolean splitPerAbi;
+
+    /**
+     * Where the index of the APKs comes from: {@code memory} as for every load after the first
+     * one in a process, {@code disk} as on later launches, or {@code none} as on the first launch
+     * after the app was installed or updated
+     */
+    @Param({"memory", "disk", "none"})
+    public String index;
+
+    private File directory;
+    private File workaroundDir;
+    private ReLinker.Platform platform;
+    private ApkLibraryInstaller installer;
+    private ReLinkerInstance instance;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("relinker-apk", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        final File apkDir = new File(directory, "apks");
+        workaroundDir = new File(directory, "lib");
+        apkDir.mkdir();
+        workaroundDir.mkdir();
+
+        final String[] apks = ApkFixtures.writeApp(apkDir, resources, splitPerAbi,
+                ApkFixtures.libraries(8, 16 * 1024), true);
+        platform = ApkFixtures.platform(apks, workaroundDir);
+        installer = new ApkLibraryInstaller();
+        instance = new ReLinkerInstance(new SystemLibraryLoader(), installer);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetIndex() {
+        if ("memory".equals(index)) {
+            return;
+        }
+
+        // A new process has neither the indexes nor the APKs open, and the previous one saved its
+        // index before exiting
+        LibraryIndex.flush(workaroundDir);
+        LibraryIndex.clear();
+        ZipFileCache.evictIdle(0);
+        if ("none".equals(index)) {
+            new File(workaroundDir, LibraryIndex.FILE_NAME).delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        LibraryIndex.clear();
+        ZipFileCache.evictIdle(0);
+        ApkFixtures.deleteRecursively(directory);
+    }
+
+    /**
+     * The lookup done before extracting a library
+     */
+    @Benchmark
+    public LibraryIndex.Library findAPKWithLibrary() {
+        final ApkLibraryInstaller.ZipFileInZipEntry found = installer.findAPKWithLibrary(platform,
+                ApkFixtures.DEVICE_ABIS, LIBRARY, instance);
+        found.close();
+        return found.library;
+    }
+
+    /**
+     * The lookup done when a library cannot be found, to report the ABIs the app does support
+     */
+    @Benchmark
+    public String[] getSupportedABIs() {
+        return installer.getSupportedABIs(platform, LIBRARY, instance);
+    }
+
+    /**
+     * The lookup done by {@link ReLinkerInstance#loadFromApk()}, including reading the local
+     * header of the library to check its alignment
+     */
+    @Benchmark
+    public String findLibraryInApk() {
+        return installer.findLibraryInApk(platform, ApkFixtures.DEVICE_ABIS, LIBRARY, instance);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import com.getkeepsafe.relinker.elf.ElfFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ReLinkerInstance#recursively() recursively} loading the root of a generated
+ * graph of libraries that all fail to load normally, from a fresh {@link ReLinkerInstance} as at
+ * the start of a process:
+ * <ul>
+ *     <li>{@code first}: nothing was extracted yet, as on the first launch after an install</li>
+ *     <li>{@code warm}: everything was extracted on a previous launch</li>
+ *     <li>{@code force}: everything was extracted, but {@link ReLinkerInstance#force()} is
+ *     used</li>
+ * </ul>
+ * Every library {@code i} needs libraries {@code 2i + 1} and {@code 2i + 2} and the system's
+ * {@code libc.so}. Each invocation starts from its own copy of the workaround directory, so that
+ * ReLinker has to read what it persisted there again, just like a new process would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColdStartBenchmark {
+    private static final String ROOT = "dependency0";
+    private static final int LIBRARY_SIZE = 256 * 1024;
+
+    @Param({"8", "32"})
+    public int libraries;
+
+    @Param({"first", "warm", "force"})
+    public String run;
+
+    private File directory;
+    private File extracted;
+    private String[] apks;
+    private int invocations;
+
+    private File workaroundDir;
+    private ReLinker.Platform platform;
+    private RecordingLibraryLoader loader;
+    private ReLinkerInstance instance;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("relinker-coldstart", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        final File apkDir = new File(directory, "apks");
+        apkDir.mkdir();
+
+        final Map<String, byte[]> graph = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < libraries; ++i) {
+            final List<String> needed = new ArrayList<String>();
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < libraries; ++child) {
+                needed.add("libdependency" + child + ".so");
+            }
+            needed.add("libc.so");
+            graph.put("libdependency" + i + ".so", ElfFixtures.build(true, false, LIBRARY_SIZE,
+                    needed.toArray(new String[needed.size()])));
+        }
+        apks = ApkFixtures.writeApp(apkDir, 1000, false, graph, false);
+
+        // Extract everything once, for the warm runs to start from, and check the load order
+        extracted = new File(directory, "extracted");
+        extracted.mkdir();
+        newProcess(extracted);
+        instance.recursively().loadLibrary(platform, ROOT);
+        checkLoadOrder(loader.loadedFiles());
+        flushState(extracted);
+    }
+
+    @Setup(Level.Invocation)
+    public void startProcess() throws IOException {
+        final File previous = workaroundDir;
+        final File next = new File(directory, "run" + invocations++);
+        next.mkdir();
+        if (!"first".equals(run)) {
+            copyDirectory(extracted, next);
+        }
+
+        newProcess(next);
+        if ("force".equals(run)) {
+            instance.force();
+        }
+
+        if (previous != null && previous != extracted) {
+            flushState(previous);
+            ApkFixtures.deleteRecursively(previous);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        LibraryIndex.clear();
+        ZipFileCache.evictIdle(0);
+        ApkFixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public List<String> loadLibrary() {
+        instance.recursively().loadLibrary(platform, ROOT);
+        return loader.loadedFiles();
+    }
+
+    /**
+     * Forgets everything ReLinker keeps in memory for the whole process, and creates a new
+     * instance extracting to {@code dir}
+     */
+    private void newProcess(final File dir) {
+        LibraryIndex.clear();
+        ZipFileCache.evictIdle(0);
+        workaroundDir = dir;
+        loader = new RecordingLibraryLoader("c");
+        platform = ApkFixtures.platform(apks, dir);
+        instance = new ReLinkerInstance(loader, new ApkLibraryInstaller());
+    }
+
+    /**
+     * Waits for the state files of {@code dir} that are saved in the background to be written
+     */
+    private static void flushState(final File dir) {
+        DependencyCache.forDirectory(dir).flush();
+        LibraryManifest.forDirectory(dir).flush();
+        LibraryIndex.flush(dir);
+    }
+
+    /**
+     * Throws if a library was loaded before one of its dependencies
+     */
+    private void checkLoadOrder(final List<String> loaded) {
+        if (loaded.size() != libraries) {
+            throw new IllegalStateException("Loaded " + loaded);
+        }
+
+        for (int i = 0; i < libraries; ++i) {
+            final int position = loaded.indexOf("libdependency" + i + ".so");
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < libraries; ++child) {
+                if (loaded.indexOf("libdependency" + child + ".so") > position) {
+                    throw new IllegalStateException("Loaded out of order: " + loaded);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the files of {@code from}, keeping their modification time since ReLinker uses it
+     * to tell whether its cached data is up to date
+     */
+    private static void copyDirectory(final File from, final File to) throws IOException {
+        final File[] files = from.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final byte[] buffer = new byte[64 * 1024];
+        for (final File file : files) {
+            final File copy = new File(to, file.getName());
+            final InputStream in = new FileInputStream(file);
+            try {
+                final OutputStream out = new FileOutputStream(copy);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            copy.setLastModified(file.lastModified());
+            copy.setExecutable(file.canExecute(), false);
+        }
+    }
+}
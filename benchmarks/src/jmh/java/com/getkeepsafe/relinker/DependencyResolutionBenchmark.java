@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import com.getkeepsafe.relinker.elf.ElfFixtures;
+import com.getkeepsafe.relinker.elf.ElfParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving the dependency graph of a recursive load, the way
+ * {@link ReLinkerInstance#recursively()} does once its libraries are extracted: every library
+ * needs the next two libraries of the graph and {@code libc.so}, which the system loads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DependencyResolutionBenchmark {
+    private static final String ROOT = "dependency0";
+
+    @Param({"8", "64"})
+    public int libraries;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File directory;
+    private DependencyCache cache;
+    private final Map<String, File> files = new HashMap<String, File>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("relinker-deps", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        cache = new DependencyCache(directory);
+        for (int i = 0; i < libraries; ++i) {
+            final List<String> needed = new ArrayList<String>();
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < libraries; ++child) {
+                needed.add("libdependency" + child + ".so");
+            }
+            needed.add("libc.so");
+
+            final File file = ElfFixtures.write(new File(directory, "libdependency" + i + ".so"),
+                    true, false, 64 * 1024, needed.toArray(new String[needed.size()]));
+            files.put("dependency" + i, file);
+            cache.put(file, null, needed, SharedExecutor.get());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] children = directory.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Resolves the graph parsing every library, as on the first launch
+     */
+    @Benchmark
+    public List<String> resolveParsing() {
+        return resolve(false);
+    }
+
+    /**
+     * Resolves the graph from the {@link DependencyCache}, as on later launches
+     */
+    @Benchmark
+    public List<String> resolveCached() {
+        return resolve(true);
+    }
+
+    private List<String> resolve(final boolean cached) {
+        final DependencyGraph graph = new DependencyGraph(new DependencyGraph.Resolver() {
+            @Override
+            public List<String> resolve(final String library) {
+                final File file = files.get(library);
+                if (file == null) {
+                    // A system library, which loads normally
+                    return null;
+                }
+
+                List<String> dependencies = cached ? cache.get(file, null) : null;
+                if (dependencies == null) {
+                    dependencies = parse(file);
+                }
+
+                final List<String> unmapped = new ArrayList<String>(dependencies.size());
+                for (final String dependency : dependencies) {
+                    unmapped.add(dependency.substring(3, dependency.length() - 3));
+                }
+                return unmapped;
+            }
+        }, SharedExecutor.get(), parallelism);
+
+        return graph.resolve(Collections.singletonList(ROOT));
+    }
+
+    private static List<String> parse(final File file) {
+        try {
+            final ElfParser parser = new ElfParser(file);
+            try {
+                return parser.parseNeededDependencies();
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
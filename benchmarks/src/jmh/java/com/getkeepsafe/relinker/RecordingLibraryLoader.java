@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link ReLinker.LibraryLoader} for the JVM. Loading a library normally only works for the
+ * given system libraries, as on a device where the app's own libraries fail to load, and loading
+ * a library from its path records the path instead of loading it.
+ */
+final class RecordingLibraryLoader implements ReLinker.LibraryLoader {
+    private final Set<String> systemLibraries;
+    private final List<String> loadedPaths = new ArrayList<String>();
+
+    RecordingLibraryLoader(final String... systemLibraries) {
+        this.systemLibraries = new HashSet<String>(Arrays.asList(systemLibraries));
+    }
+
+    @Override
+    public void loadLibrary(final String libraryName) {
+        if (!systemLibraries.contains(libraryName)) {
+            throw new UnsatisfiedLinkError("Couldn't load " + libraryName);
+        }
+    }
+
+    @Override
+    public synchronized void loadPath(final String libraryPath) {
+        loadedPaths.add(libraryPath);
+    }
+
+    @Override
+    public String mapLibraryName(final String libraryName) {
+        return "lib" + libraryName + ".so";
+    }
+
+    @Override
+    public String unmapLibraryName(final String mappedLibraryName) {
+        return mappedLibraryName.substring(3, mappedLibraryName.length() - 3);
+    }
+
+    @Override
+    public String[] supportedAbis() {
+        return ApkFixtures.DEVICE_ABIS;
+    }
+
+    /**
+     * @return The names of the files loaded from their path, in the order they were loaded
+     */
+    synchronized List<String> loadedFiles() {
+        final List<String> names = new ArrayList<String>(loadedPaths.size());
+        for (final String path : loadedPaths) {
+            names.add(new File(path).getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker.elf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Shared objects for the benchmarks to parse. Besides the real {@code libdl.so} used by the unit
+ * tests, this generates libraries of every class and byte order, since real big endian or 32 bit
+ * libraries are hard to come by on a development machine.
+ */
+public final class ElfFixtures {
+    /** The real library bundled with the benchmarks */
+    public static final String LIBDL = "libdl.so";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ElfFixtures() {}
+
+    /**
+     * Resolves a fixture name to a file in {@code directory}. Names look like
+     * {@code elf64-little-medium}: the class, the byte order and the size of a generated library.
+     * {@link #LIBDL} is the bundled real library, and any other name is taken as the path of an
+     * existing library, e.g. to benchmark the libraries of the machine running the benchmarks.
+     */
+    public static File resolve(final File directory, final String fixture) throws IOException {
+        if (LIBDL.equals(fixture)) {
+            return copyResource(directory, LIBDL);
+        }
+
+        final String[] parts = fixture.split("-");
+        if (parts.length != 3 || !parts[0].startsWith("elf")) {
+            final File file = new File(fixture);
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("Unknown fixture " + fixture);
+            }
+            return file;
+        }
+
+        final boolean is64 = "elf64".equals(parts[0]);
+        final boolean bigEndian = "big".equals(parts[1]);
+        final int neededCount;
+        final int padding;
+        if ("small".equals(parts[2])) {
+            neededCount = 4;
+            padding = 0;
+        } else if ("medium".equals(parts[2])) {
+            neededCount = 32;
+            padding = 256 * 1024;
+        } else if ("large".equals(parts[2])) {
+            neededCount = 128;
+            padding = 8 * 1024 * 1024;
+        } else {
+            throw new IllegalArgumentException("Unknown fixture size " + parts[2]);
+        }
+
+        final String[] needed = new String[neededCount];
+        for (int i = 0; i < neededCount; ++i) {
+            needed[i] = "libdependency" + i + ".so";
+        }
+        return write(new File(directory, fixture + ".so"), is64, bigEndian, padding, needed);
+    }
+
+    /**
+     * Writes the shared object {@link #build built} from the given arguments to {@code file}
+     */
+    public static File write(final File file,
+                             final boolean is64,
+                             final boolean bigEndian,
+                             final int padding,
+                             final String... needed) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(build(is64, bigEndian, padding, needed));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Builds a shared object with one PT_LOAD segment mapping the whole file at vaddr 0, a
+     * PT_DYNAMIC segment listing {@code needed}, {@code padding} bytes standing in for code and
+     * data, and finally the string table.
+     */
+    public static byte[] build(final boolean is64,
+                               final boolean bigEndian,
+                               final int padding,
+                               final String... needed) {
+        final byte[][] names = new byte[needed.length][];
+        int stringTableSize = 1;
+        for (int i = 0; i < needed.length; ++i) {
+            names[i] = needed[i].getBytes(UTF_8);
+            stringTableSize += names[i].length + 1;
+        }
+
+        final int phoff = is64 ? 0x40 : 0x34;
+        final int phentsize = is64 ? 0x38 : 0x20;
+        final int dynamicOffset = phoff + 2 * phentsize;
+        final int dynamicEntrySize = is64 ? 16 : 8;
+        final int dynamicSize = (needed.length + 3) * dynamicEntrySize;
+        final int stringTableOffset = dynamicOffset + dynamicSize + padding;
+        final int fileSize = stringTableOffset + stringTableSize;
+
+        final ByteBuffer elf = ByteBuffer.allocate(fileSize);
+        elf.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[] {0x7F, 'E', 'L', 'F'});
+        elf.put(4, (byte) (is64 ? Elf.Header.ELFCLASS64 : Elf.Header.ELFCLASS32));
+        elf.put(5, (byte) (bigEndian ? Elf.Header.ELFDATA2MSB : 1));
+        elf.putShort(0x10, (short) 3); // ET_DYN
+        if (is64) {
+            elf.putLong(0x20, phoff);
+            elf.putShort(0x36, (short) phentsize);
+            elf.putShort(0x38, (short) 2);
+        } else {
+            elf.putInt(0x1C, phoff);
+            elf.putShort(0x2A, (short) phentsize);
+            elf.putShort(0x2C, (short) 2);
+        }
+
+        putProgramHeader(elf, is64, phoff, Elf.ProgramHeader.PT_LOAD, 0, fileSize);
+        putProgramHeader(elf, is64, phoff + phentsize, Elf.ProgramHeader.PT_DYNAMIC,
+                dynamicOffset, dynamicSize);
+
+        int entry = dynamicOffset;
+        int nameOffset = 1;
+        for (final byte[] name : names) {
+            putWord(elf, is64, entry, Elf.DynamicStructure.DT_NEEDED);
+            putWord(elf, is64, entry + dynamicEntrySize / 2, nameOffset);
+            entry += dynamicEntrySize;
+            nameOffset += name.length + 1;
+        }
+        putWord(elf, is64, entry, Elf.DynamicStructure.DT_STRTAB);
+        putWord(elf, is64, entry + dynamicEntrySize / 2, stringTableOffset);
+        entry += dynamicEntrySize;
+        putWord(elf, is64, entry, Elf.DynamicStructure.DT_STRSZ);
+        putWord(elf, is64, entry + dynamicEntrySize / 2, stringTableSize);
+
+        elf.position(stringTableOffset + 1);
+        for (final byte[] name : names) {
+            elf.put(name).put((byte) 0);
+        }
+        return elf.array();
+    }
+
+    private static File copyResource(final File directory, final String name) throws IOException {
+        final File file = new File(directory, name);
+        final InputStream in = ElfFixtures.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing resource " + name);
+        }
+
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return file;
+    }
+
+    private static void putProgramHeader(final ByteBuffer elf, final boolean is64,
+                                         final int base, final int type, final long offset,
+                                         final long size) {
+        elf.putInt(base, type);
+        if (is64) {
+            elf.putLong(base + 0x8, offset);
+            elf.putLong(base + 0x10, offset);
+            elf.putLong(base + 0x20, size);
+            elf.putLong(base + 0x28, size);
+        } else {
+            elf.putInt(base + 0x4, (int) offset);
+            elf.putInt(base + 0x8, (int) offset);
+            elf.putInt(base + 0x10, (int) size);
+            elf.putInt(base + 0x14, (int) size);
+        }
+    }
+
+    private static void putWord(final ByteBuffer elf, final boolean is64, final int index,
+                                final long value) {
+        if (is64) {
+            elf.putLong(index, value);
+        } else {
+            elf.putInt(index, (int) value);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker.elf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ElfParser} over libraries of every class and byte order. Pass
+ * {@code -p fixture=/path/to/lib.so} to the benchmark jar to measure other libraries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ElfParserBenchmark {
+    @Param({
+            "elf32-little-small", "elf32-little-medium", "elf32-little-large",
+            "elf32-big-small", "elf32-big-medium", "elf32-big-large",
+            "elf64-little-small", "elf64-little-medium", "elf64-little-large",
+            "elf64-big-small", "elf64-big-medium", "elf64-big-large",
+            ElfFixtures.LIBDL
+    })
+    public String fixture;
+
+    private File directory;
+    private File file;
+    private ElfParser parser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("relinker-elf", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        file = ElfFixtures.resolve(directory, fixture);
+        parser = new ElfParser(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        parser.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public Elf.Header parseHeader() throws IOException {
+        return parser.parseHeader();
+    }
+
+    @Benchmark
+    public List<String> parseNeededDependencies() throws IOException {
+        return parser.parseNeededDependencies();
+    }
+
+    /**
+     * What ReLinker does for every library it re-links recursively: open the file, parse its
+     * dependencies and close it again
+     */
+    @Benchmark
+    public List<String> openAndParseNeededDependencies() throws IOException {
+        final ElfParser parser = new ElfParser(file);
+        try {
+            return parser.parseNeededDependencies();
+        } finally {
+            parser.close();
+        }
+    }
+}
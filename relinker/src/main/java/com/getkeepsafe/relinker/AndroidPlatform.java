@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+import java.io.File;
+
+/**
+ * The {@link ReLinker.Platform} of an app running on a device, described by its {@link Context}
+ */
+public class AndroidPlatform implements ReLinker.Platform {
+    private static final String LIB_DIR = "lib";
+
+    protected final Context context;
+
+    public AndroidPlatform(final Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Given context is null");
+        }
+
+        this.context = context;
+    }
+
+    @Override
+    public String[] sourceApks() {
+        final ApplicationInfo appInfo = context.getApplicationInfo();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+            appInfo.splitSourceDirs != null &&
+            appInfo.splitSourceDirs.length != 0) {
+            String[] apks = new String[appInfo.splitSourceDirs.length + 1];
+            apks[0] = appInfo.sourceDir;
+            System.arraycopy(appInfo.splitSourceDirs, 0, apks, 1, appInfo.splitSourceDirs.length);
+            return apks;
+        } else {
+            return new String[] { appInfo.sourceDir };
+        }
+    }
+
+    @Override
+    public File workaroundLibDir() {
+        return context.getDir(LIB_DIR, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return {@code true} on API 23+, where the system linker supports {@code apk!/path} paths
+     */
+    @Override
+    public boolean canLoadFromApk() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+}
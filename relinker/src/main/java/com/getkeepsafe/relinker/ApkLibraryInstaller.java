@@ -17,124 +17,161 @@ package com.getkeepsafe.relinker;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.os.Build;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
-public class ApkLibraryInstaller implements ReLinker.LibraryInstaller {
-    private static final int MAX_TRIES = 5;
-    private static final int COPY_BUFFER_SIZE = 4096;
+public class ApkLibraryInstaller implements ReLinker.BatchLibraryInstaller,
+        ReLinker.DirectLibraryInstaller, ReLinker.VerifiableLibraryInstaller {
+    private static final int PAGE_SIZE = 4096;
+    // Temporary files start with a dot, so that they never look like a version of a library
+    private static final String TEMP_PREFIX = ".relinker-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Temporary files older than this were left behind by a process that died mid-extraction
+    private static final long STALE_TEMP_MS = 60 * 60 * 1000;
+    // Headroom kept free on top of the library itself, for the file system's own needs
+    private static final long FREE_SPACE_MARGIN = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
-    private String[] sourceDirectories(final Context context) {
-        final ApplicationInfo appInfo = context.getApplicationInfo();
+    /**
+     * A library found in an APK. Libraries that can be read straight from the APK's file have no
+     * {@link #apk handle}, {@link #zipFile} or {@link #zipEntry}.
+     */
+    static class ZipFileInZipEntry {
+        public ZipFileCache.Handle apk;
+        public File apkFile;
+        public ZipFile zipFile;
+        public ZipEntry zipEntry;
+        public LibraryIndex.Library library;
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
-            appInfo.splitSourceDirs != null &&
-            appInfo.splitSourceDirs.length != 0) {
-            String[] apks = new String[appInfo.splitSourceDirs.length + 1];
-            apks[0] = appInfo.sourceDir;
-            System.arraycopy(appInfo.splitSourceDirs, 0, apks, 1, appInfo.splitSourceDirs.length);
-            return apks;
-        } else {
-            return new String[] { appInfo.sourceDir };
+        public ZipFileInZipEntry(ZipFileCache.Handle apk, File apkFile, ZipEntry zipEntry,
+                                 LibraryIndex.Library library) {
+            this.apk = apk;
+            this.apkFile = apkFile;
+            this.zipFile = apk != null ? apk.zipFile : null;
+            this.zipEntry = zipEntry;
+            this.library = library;
+        }
+
+        public void close() {
+            if (apk != null) {
+                apk.close();
+            }
         }
     }
 
-    private static class ZipFileInZipEntry {
-        public ZipFile zipFile;
-        public ZipEntry zipEntry;
+    private static class Extraction {
+        final File apkFile;
+        final ZipFile zipFile;
+        final ZipEntry zipEntry;
+        final LibraryIndex.Library library;
+        final File destination;
 
-        public ZipFileInZipEntry(ZipFile zipFile, ZipEntry zipEntry) {
+        Extraction(File apkFile, ZipFile zipFile, ZipEntry zipEntry,
+                   LibraryIndex.Library library, File destination) {
+            this.apkFile = apkFile;
             this.zipFile = zipFile;
             this.zipEntry = zipEntry;
+            this.library = library;
+            this.destination = destination;
         }
     }
 
-    private ZipFileInZipEntry findAPKWithLibrary(final Context context,
-                                                 final String[] abis,
-                                                 final String mappedLibraryName,
-                                                 final ReLinkerInstance instance) {
-
-        for (String sourceDir : sourceDirectories(context)) {
-            ZipFile zipFile = null;
-            int tries = 0;
-            while (tries++ < MAX_TRIES) {
-                try {
-                    zipFile = new ZipFile(new File(sourceDir), ZipFile.OPEN_READ);
-                    break;
-                } catch (IOException ignored) {
-                }
+    /**
+     * @return The APK holding the library along with its entry, or {@code null} if no APK has
+     * it. The result must be {@link ZipFileInZipEntry#close() closed}.
+     */
+    ZipFileInZipEntry findAPKWithLibrary(final ReLinker.Platform platform,
+                                         final String[] abis,
+                                         final String mappedLibraryName,
+                                         final ReLinkerInstance instance) {
+
+        for (String sourceDir : platform.sourceApks()) {
+            final LibraryIndex index = indexAPK(platform, sourceDir, instance);
+            if (index == null) {
+                continue;
             }
 
-            if (zipFile == null) {
+            final LibraryIndex.Library library = findLibrary(index, abis, mappedLibraryName,
+                    sourceDir, instance);
+            if (library == null) {
                 continue;
             }
 
-            tries = 0;
-            while (tries++ < MAX_TRIES) {
-                String jniNameInApk = null;
-                ZipEntry libraryEntry = null;
+            if (library.isReadableFromApk()) {
+                return new ZipFileInZipEntry(null, new File(sourceDir), null, library);
+            }
 
-                for (final String abi : abis) {
-                    jniNameInApk = "lib" + File.separatorChar + abi + File.separatorChar
-                            + mappedLibraryName;
+            final ZipFileCache.Handle apk = openZipFile(sourceDir, instance);
+            if (apk == null) {
+                continue;
+            }
 
-                    instance.log("Looking for %s in APK %s...", jniNameInApk, sourceDir);
+            final ZipEntry libraryEntry = apk.zipFile.getEntry(library.entryName());
+            if (libraryEntry != null) {
+                return new ZipFileInZipEntry(apk, new File(sourceDir), libraryEntry, library);
+            }
 
-                    libraryEntry = zipFile.getEntry(jniNameInApk);
+            apk.close();
+        }
 
-                    if (libraryEntry != null) {
-                        return new ZipFileInZipEntry(zipFile, libraryEntry);
-                    }
-                }
+        return null;
+    }
+
+    private LibraryIndex.Library findLibrary(final LibraryIndex index,
+                                             final String[] abis,
+                                             final String mappedLibraryName,
+                                             final String sourceDir,
+                                             final ReLinkerInstance instance) {
+        for (final String abi : abis) {
+            // This runs for every ABI of every library, don't build the arguments for nothing
+            if (instance.logger != null) {
+                instance.log("Looking for lib%s%s%s%s in APK %s...", File.separator, abi,
+                        File.separator, mappedLibraryName, sourceDir);
             }
 
-            try {
-                zipFile.close();
-            } catch (IOException ignored) {
+            final LibraryIndex.Library library = index.get(abi, mappedLibraryName);
+            if (library != null) {
+                return library;
             }
         }
 
         return null;
     }
 
-    // Loop over all APK's again in order to detect which ABI's are actually supported.
-    // This second loop is more expensive than trying to find a specific ABI, so it should
-    // only be ran when no matching libraries are found. This should keep the overhead of
-    // the happy path to a minimum.
-    private String[] getSupportedABIs(Context context, String mappedLibraryName) {
-        String p = "lib" + File.separatorChar + "([^\\" + File.separatorChar + "]*)" + File.separatorChar + mappedLibraryName;
-        Pattern pattern = Pattern.compile(p);
-        ZipFile zipFile;
-        Set<String> supportedABIs = new HashSet<String>();
-        for (String sourceDir : sourceDirectories(context)) {
-            try {
-                zipFile = new ZipFile(new File(sourceDir), ZipFile.OPEN_READ);
-            } catch (IOException ignored) {
-                continue;
-            }
-
-            Enumeration<? extends ZipEntry> elements = zipFile.entries();
-            while (elements.hasMoreElements()) {
-                ZipEntry el = elements.nextElement();
-                Matcher match = pattern.matcher(el.getName());
-                if (match.matches()) {
-                    supportedABIs.add(match.group(1));
-                }
+    // Detect which ABI's are actually supported by the APK's, using the same indexes as the
+    // lookup itself. This is only needed when no matching libraries are found.
+    String[] getSupportedABIs(final ReLinker.Platform platform,
+                              final String mappedLibraryName,
+                              final ReLinkerInstance instance) {
+        Set<String> supportedABIs = new LinkedHashSet<String>();
+        for (String sourceDir : platform.sourceApks()) {
+            final LibraryIndex index = indexAPK(platform, sourceDir, instance);
+            if (index != null) {
+                supportedABIs.addAll(index.abisFor(mappedLibraryName));
             }
         }
 
@@ -149,80 +186,656 @@ public class ApkLibraryInstaller implements ReLinker.LibraryInstaller {
      * @param context {@link Context} to describe the location of the installed APK file
      * @param mappedLibraryName The mapped name of the library file to load
      */
-    @SuppressLint ("SetWorldReadable")
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     @Override
     public void installLibrary(final Context context,
                                final String[] abis,
                                final String mappedLibraryName,
                                final File destination,
                                final ReLinkerInstance instance) {
+        installLibrary(new AndroidPlatform(context), abis, mappedLibraryName, destination,
+                instance);
+    }
+
+    /**
+     * Attempts to unpack the given library to the given destination. Implements retry logic for
+     * IO operations to ensure they succeed.
+     *
+     * @param platform {@link ReLinker.Platform} to find the installed APK files from
+     * @param mappedLibraryName The mapped name of the library file to load
+     */
+    @Override
+    public void installLibrary(final ReLinker.Platform platform,
+                               final String[] abis,
+                               final String mappedLibraryName,
+                               final File destination,
+                               final ReLinkerInstance instance) {
         ZipFileInZipEntry found = null;
         try {
-            found = findAPKWithLibrary(context, abis, mappedLibraryName, instance);
+            final long lookupStart = System.nanoTime();
+            found = findAPKWithLibrary(platform, abis, mappedLibraryName, instance);
+            instance.measureInstall(mappedLibraryName, ReLinker.Phase.APK_LOOKUP, lookupStart);
             if (found == null) {
-                // Does not exist in any APK. Report exactly what ReLinker is looking for and
-                // what is actually supported by the APK.
-                String[] supportedABIs;
-                try {
-                    supportedABIs = getSupportedABIs(context, mappedLibraryName);
-                } catch (Exception e) {
-                    // Should never happen as this indicates a bug in ReLinker code, but just to be safe.
-                    // User code should only ever crash with a MissingLibraryException if getting this far.
-                    supportedABIs = new String[1];
-                    supportedABIs[0] = e.toString();
-                }
-                throw new MissingLibraryException(mappedLibraryName, abis, supportedABIs);
+                throw missingLibrary(platform, abis, mappedLibraryName, instance);
             }
 
-            int tries = 0;
-            while (tries++ < MAX_TRIES) {
-                instance.log("Found %s! Extracting...", mappedLibraryName);
-                try {
-                    if (!destination.exists() && !destination.createNewFile()) {
-                        continue;
-                    }
-                } catch (IOException ignored) {
-                    // Try again
+            if (!extract(found.apkFile, found.zipFile, found.zipEntry, found.library,
+                    destination, instance)) {
+                instance.log("FATAL! Couldn't extract the library from the APK!");
+            }
+        } finally {
+            if (found != null) {
+                found.close();
+            }
+        }
+    }
+
+    /**
+     * Unpacks several libraries at once. Each APK is opened only once, and the libraries are
+     * extracted concurrently on the {@link ReLinkerInstance}'s executor, each with its own stream,
+     * but never more than {@link ReLinkerInstance#extractionParallelism(int)} at a time.
+     *
+     * @param platform {@link ReLinker.Platform} to find the installed APK files from
+     * @param mappedLibraryNames The mapped names of the library files to extract
+     * @param destinations The files to extract each of the libraries to
+     */
+    @Override
+    public void installLibraries(final ReLinker.Platform platform,
+                                 final String[] abis,
+                                 final String[] mappedLibraryNames,
+                                 final File[] destinations,
+                                 final ReLinkerInstance instance) {
+        final boolean[] found = new boolean[mappedLibraryNames.length];
+        final List<ZipFileCache.Handle> apks = new ArrayList<ZipFileCache.Handle>();
+        final List<Extraction> extractions = new ArrayList<Extraction>();
+        int remaining = mappedLibraryNames.length;
+
+        try {
+            final long lookupStart = System.nanoTime();
+            for (final String sourceDir : platform.sourceApks()) {
+                if (remaining == 0) {
+                    break;
+                }
+
+                final LibraryIndex index = indexAPK(platform, sourceDir, instance);
+                if (index == null) {
                     continue;
                 }
 
-                InputStream inputStream = null;
-                FileOutputStream fileOut = null;
-                try {
-                    inputStream = found.zipFile.getInputStream(found.zipEntry);
-                    fileOut = new FileOutputStream(destination);
-                    final long written = copy(inputStream, fileOut);
-                    fileOut.getFD().sync();
-                    if (written != destination.length()) {
-                        // File was not written entirely... Try again
+                ZipFileCache.Handle apk = null;
+                for (int i = 0; i < mappedLibraryNames.length; ++i) {
+                    if (found[i]) continue;
+
+                    final LibraryIndex.Library library = findLibrary(index, abis,
+                            mappedLibraryNames[i], sourceDir, instance);
+                    if (library == null) continue;
+
+                    if (library.isReadableFromApk()) {
+                        found[i] = true;
+                        --remaining;
+                        extractions.add(new Extraction(new File(sourceDir), null, null,
+                                library, destinations[i]));
                         continue;
                     }
-                } catch (FileNotFoundException e) {
-                    // Try again
-                    continue;
-                } catch (IOException e) {
-                    // Try again
-                    continue;
-                } finally {
-                    closeSilently(inputStream);
-                    closeSilently(fileOut);
+
+                    if (apk == null) {
+                        if ((apk = openZipFile(sourceDir, instance)) == null) {
+                            break;
+                        }
+                        apks.add(apk);
+                    }
+
+                    final ZipEntry libraryEntry = apk.zipFile.getEntry(library.entryName());
+                    if (libraryEntry != null) {
+                        found[i] = true;
+                        --remaining;
+                        extractions.add(new Extraction(new File(sourceDir), apk.zipFile,
+                                libraryEntry, library, destinations[i]));
+                    }
+                }
+            }
+
+            // The libraries are looked up together, so they all report the same duration
+            for (final String mappedLibraryName : mappedLibraryNames) {
+                instance.measureInstall(mappedLibraryName, ReLinker.Phase.APK_LOOKUP,
+                        lookupStart);
+            }
+
+            extractAll(extractions, instance);
+        } finally {
+            for (final ZipFileCache.Handle apk : apks) {
+                apk.close();
+            }
+        }
+
+        for (int i = 0; i < mappedLibraryNames.length; ++i) {
+            if (!found[i]) {
+                throw missingLibrary(platform, abis, mappedLibraryNames[i], instance);
+            }
+        }
+    }
+
+    /**
+     * Runs the given extractions with up to {@link ReLinkerInstance#getExtractionParallelism()}
+     * threads. The calling thread takes part and only waits for the extractions that other
+     * threads have started, so a busy executor can't stall it.
+     */
+    private void extractAll(final List<Extraction> extractions,
+                            final ReLinkerInstance instance) {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(extractions.size());
+        final Throwable[] failure = new Throwable[1];
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < extractions.size()) {
+                    final Extraction extraction = extractions.get(i);
+                    try {
+                        if (!extract(extraction.apkFile, extraction.zipFile, extraction.zipEntry,
+                                extraction.library, extraction.destination, instance)) {
+                            instance.log("FATAL! Couldn't extract the library from the APK!");
+                        }
+                    } catch (RuntimeException e) {
+                        fail(failure, e);
+                    } catch (Error e) {
+                        fail(failure, e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+
+        final int parallelism = Math.min(instance.getExtractionParallelism(), extractions.size());
+        for (int i = 1; i < parallelism; ++i) {
+            try {
+                instance.getExecutor().execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (failure) {
+            if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            } else if (failure[0] != null) {
+                throw (RuntimeException) failure[0];
+            }
+        }
+    }
+
+    private static void fail(final Throwable[] failure, final Throwable t) {
+        synchronized (failure) {
+            if (failure[0] == null) {
+                failure[0] = t;
+            }
+        }
+    }
+
+    /**
+     * Finds the library the same way {@link #installLibrary} does, and checks whether the system
+     * linker can map it straight from the APK: it has to be stored uncompressed, with its data
+     * aligned to a page boundary.
+     *
+     * @return The {@code apk!/lib/<abi>/<name>} path of the library, or {@code null} if it has to
+     * be extracted
+     */
+    @Override
+    public String findLibraryInApk(final ReLinker.Platform platform,
+                                   final String[] abis,
+                                   final String mappedLibraryName,
+                                   final ReLinkerInstance instance) {
+        for (final String sourceDir : platform.sourceApks()) {
+            final LibraryIndex index = indexAPK(platform, sourceDir, instance);
+            if (index == null) {
+                continue;
+            }
+
+            final LibraryIndex.Library library = findLibrary(index, abis, mappedLibraryName,
+                    sourceDir, instance);
+            if (library == null) {
+                continue;
+            }
+
+            if (library.method != ZipEntry.STORED) {
+                instance.log("%s is compressed, it has to be extracted", library.entryName());
+                return null;
+            }
+
+            final long dataOffset;
+            try {
+                dataOffset = library.dataOffset(new File(sourceDir));
+            } catch (IOException e) {
+                return null;
+            }
+
+            if (dataOffset < 0 || dataOffset % PAGE_SIZE != 0) {
+                instance.log("%s is not page aligned, it has to be extracted",
+                        library.entryName());
+                return null;
+            }
+
+            return sourceDir + "!/" + library.entryName();
+        }
+
+        return null;
+    }
+
+    /**
+     * Compares the metadata recorded when {@code destination} was extracted with the size and
+     * CRC of the library in the APK, without reading the extracted library itself.
+     *
+     * @return {@code true} if {@code destination} is an up to date copy of the library
+     */
+    @Override
+    public boolean isInstalled(final ReLinker.Platform platform,
+                               final String[] abis,
+                               final String mappedLibraryName,
+                               final File destination,
+                               final ReLinkerInstance instance) {
+        final LibraryMetadata metadata = LibraryMetadata.read(destination);
+        if (metadata == null || metadata.size != destination.length()) {
+            return false;
+        }
+
+        for (final String sourceDir : platform.sourceApks()) {
+            final LibraryIndex index = indexAPK(platform, sourceDir, instance);
+            if (index == null) {
+                continue;
+            }
+
+            final LibraryIndex.Library library = index.find(abis, mappedLibraryName);
+            if (library != null) {
+                return library.size == metadata.size && library.crc == metadata.crc;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The library does not exist in any APK. Report exactly what ReLinker is looking for and
+     * what is actually supported by the APK.
+     */
+    private MissingLibraryException missingLibrary(final ReLinker.Platform platform,
+                                                   final String[] abis,
+                                                   final String mappedLibraryName,
+                                                   final ReLinkerInstance instance) {
+        String[] supportedABIs;
+        try {
+            supportedABIs = getSupportedABIs(platform, mappedLibraryName, instance);
+        } catch (Exception e) {
+            // Should never happen as this indicates a bug in ReLinker code, but just to be safe.
+            // User code should only ever crash with a MissingLibraryException if getting this far.
+            supportedABIs = new String[1];
+            supportedABIs[0] = e.toString();
+        }
+        return new MissingLibraryException(mappedLibraryName, abis, supportedABIs);
+    }
+
+    /**
+     * Looks up the index of the native libraries in the APK at {@code sourceDir}, which is only
+     * scanned if it changed since it was last indexed.
+     *
+     * @return The index of the APK, or {@code null} if it cannot be read
+     */
+    private LibraryIndex indexAPK(final ReLinker.Platform platform,
+                                  final String sourceDir,
+                                  final ReLinkerInstance instance) {
+        final File apk = new File(sourceDir);
+        final File directory = instance.getWorkaroundLibDir(platform);
+        final RetryPolicy retryPolicy = retryPolicyOf(instance);
+        int attempt = 0;
+        while (true) {
+            try {
+                return LibraryIndex.forApk(apk, directory, instance.getExecutor());
+            } catch (IOException e) {
+                if (!retry(retryPolicy, ++attempt, e, apk)) {
+                    instance.log("Could not read APK %s: %s", sourceDir, e);
+                    return null;
                 }
+            }
+        }
+    }
+
+    /**
+     * Opens the APK at {@code sourceDir}, sharing an already open handle where possible
+     *
+     * @return A handle to the APK that must be closed, or {@code null} if it cannot be opened
+     */
+    private ZipFileCache.Handle openZipFile(final String sourceDir,
+                                            final ReLinkerInstance instance) {
+        final File apk = new File(sourceDir);
+        final RetryPolicy retryPolicy = retryPolicyOf(instance);
+        int attempt = 0;
+        while (true) {
+            try {
+                return ZipFileCache.acquire(apk);
+            } catch (IOException e) {
+                if (!retry(retryPolicy, ++attempt, e, apk)) {
+                    instance.log("Could not open APK %s: %s", sourceDir, e);
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static RetryPolicy retryPolicyOf(final ReLinkerInstance instance) {
+        final RetryPolicy retryPolicy = instance.getRetryPolicy();
+        return retryPolicy != null ? retryPolicy : RetryPolicy.DEFAULT;
+    }
+
+    /**
+     * Asks {@code retryPolicy} whether to retry after {@code error}, unless it was thrown because
+     * {@code apk} doesn't exist. Android also reports running out of file descriptors or a busy
+     * file as a {@link FileNotFoundException}, so that alone doesn't mean the APK is gone.
+     */
+    private static boolean retry(final RetryPolicy retryPolicy,
+                                 final int attempt,
+                                 final IOException error,
+                                 final File apk) {
+        if (error instanceof FileNotFoundException && !apk.exists()) {
+            return false;
+        }
+
+        return retryPolicy.retry(attempt, error);
+    }
+
+    /**
+     * Extracts a single entry to {@code destination}, retrying failed IO operations as long as
+     * the {@link RetryPolicy} allows.
+     *
+     * @return {@code true} if the library was extracted
+     */
+    private boolean extract(final File apkFile,
+                            final ZipFile zipFile,
+                            final ZipEntry zipEntry,
+                            final LibraryIndex.Library library,
+                            final File destination,
+                            final ReLinkerInstance instance) {
+        final RetryPolicy retryPolicy = retryPolicyOf(instance);
+        LibraryMetadata.delete(destination);
+        deleteStaleTempFiles(destination);
+        if (!ensureFreeSpace(destination, library.size, instance)) {
+            if (instance.logger != null) {
+                instance.log("Not enough space to extract %s (%d bytes)", library.name,
+                        library.size);
+            }
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        int attempt = 0;
+        while (true) {
+            instance.log("Found %s! Extracting...", library.name);
+            try {
+                final long written =
+                        extractOnce(apkFile, zipFile, zipEntry, library, destination);
+                instance.measureExtraction(library.name, written, start);
+                return true;
+            } catch (IOException e) {
+                if (!retry(retryPolicy, ++attempt, e, apkFile)) {
+                    instance.log("Could not extract %s: %s", library.name, e);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary files that processes which died while extracting {@code destination}
+     * left behind. Recent ones may still be written to by another process, so they are kept.
+     */
+    private void deleteStaleTempFiles(final File destination) {
+        final File directory = destination.getParentFile();
+        final String prefix = TEMP_PREFIX + destination.getName() + "-";
+        final File[] temps = directory == null ? null : directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(prefix) && name.endsWith(TEMP_SUFFIX);
+            }
+        });
+
+        if (temps == null) return;
+
+        final long staleBefore = System.currentTimeMillis() - STALE_TEMP_MS;
+        for (final File temp : temps) {
+            if (temp.lastModified() < staleBefore) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Checks that there is room for {@code size} more bytes next to {@code destination}, and
+     * evicts the least recently used libraries from its directory if there isn't.
+     *
+     * @return {@code false} if there still isn't enough space
+     */
+    private boolean ensureFreeSpace(final File destination,
+                                    final long size,
+                                    final ReLinkerInstance instance) {
+        final File directory = destination.getParentFile();
+        if (size < 0 || directory == null) {
+            return true;
+        }
+
+        final long needed = size + FREE_SPACE_MARGIN;
+        final long usable = directory.getUsableSpace();
+        if (usable >= needed) {
+            return true;
+        }
+
+        if (instance.logger != null) {
+            instance.log("Only %d bytes left, evicting old libraries...", usable);
+        }
+        final long freed = LibraryManifest.forDirectory(directory).evict(needed - usable,
+                destination, instance.getExecutor());
+        return usable + freed >= needed;
+    }
 
-                // Change permission to rwxr-xr-x
-                destination.setReadable(true, false);
-                destination.setExecutable(true, false);
-                destination.setWritable(true);
-                return;
+    /**
+     * Extracts the entry to a temporary file and renames it over {@code destination} once its
+     * size and CRC have been verified, so that a crash mid-copy never leaves a truncated library
+     * behind. Every extraction gets its own temporary file, so that threads or processes
+     * extracting the same library at the same time never write into each other's copy.
+     *
+     * @return The number of bytes extracted
+     */
+    @SuppressLint ("SetWorldReadable")
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private long extractOnce(final File apkFile,
+                             final ZipFile zipFile,
+                             final ZipEntry zipEntry,
+                             final LibraryIndex.Library library,
+                             final File destination) throws IOException {
+        final File temp = File.createTempFile(TEMP_PREFIX + destination.getName() + "-",
+                TEMP_SUFFIX, destination.getParentFile());
+        final CRC32 crc = new CRC32();
+        final long written;
+        boolean renamed = false;
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                written = copyEntry(apkFile, zipFile, zipEntry, library, fileOut, crc);
+                fileOut.getFD().sync();
+            } finally {
+                closeSilently(fileOut);
             }
 
-            instance.log("FATAL! Couldn't extract the library from the APK!");
+            if ((library.size >= 0 && written != library.size)
+                    || (library.crc >= 0 && crc.getValue() != library.crc)) {
+                // File was not written entirely or correctly
+                throw new IOException(library.name + " failed verification");
+            }
+
+            // Change permission to rwxr-xr-x
+            temp.setReadable(true, false);
+            temp.setExecutable(true, false);
+            temp.setWritable(true);
+            if (!temp.renameTo(destination)) {
+                throw new IOException("Could not rename " + temp + " to " + destination);
+            }
+            renamed = true;
         } finally {
+            if (!renamed) {
+                temp.delete();
+            }
+        }
+
+        new LibraryMetadata(written, crc.getValue()).write(destination);
+        return written;
+    }
+
+    /**
+     * Copies the data of an entry to {@code out}, updating {@code crc} with every byte written.
+     * When the entry's data can be located in the APK, it is read straight from the APK's file
+     * (and inflated if needed), otherwise this falls back to {@link ZipFile}'s streams, opening
+     * the APK if {@code zipFile} is {@code null}.
+     *
+     * @return The actual number of bytes copied
+     */
+    private long copyEntry(final File apkFile,
+                           final ZipFile zipFile,
+                           final ZipEntry zipEntry,
+                           final LibraryIndex.Library library,
+                           final OutputStream out,
+                           final CRC32 crc) throws IOException {
+        final long dataOffset = library.dataOffset(apkFile);
+        if (dataOffset >= 0 && (library.method == ZipEntry.STORED
+                || library.method == ZipEntry.DEFLATED)) {
+            final FileInputStream in = new FileInputStream(apkFile);
             try {
-                if (found != null && found.zipFile != null) {
-                    found.zipFile.close();
+                if (library.method == ZipEntry.STORED) {
+                    return copyRange(in.getChannel(), dataOffset, library.size, out, crc);
                 }
-            } catch (IOException ignored) {}
+                return inflate(in.getChannel(), dataOffset, library.compressedSize, out, crc);
+            } finally {
+                closeSilently(in);
+            }
+        }
+
+        if (zipFile != null) {
+            return copy(zipFile, zipEntry, out, crc);
+        }
+
+        final ZipFileCache.Handle apk = ZipFileCache.acquire(apkFile);
+        try {
+            final ZipEntry entry = apk.zipFile.getEntry(library.entryName());
+            if (entry == null) {
+                throw new ZipException("Missing " + library.entryName());
+            }
+            return copy(apk.zipFile, entry, out, crc);
+        } finally {
+            apk.close();
+        }
+    }
+
+    private long copy(final ZipFile zipFile,
+                      final ZipEntry zipEntry,
+                      final OutputStream out,
+                      final CRC32 crc) throws IOException {
+        final InputStream in = zipFile.getInputStream(zipEntry);
+        try {
+            return copy(in, out, crc);
+        } finally {
+            closeSilently(in);
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes starting at {@code position} of {@code in} to {@code out}
+     *
+     * @return The actual number of bytes copied
+     */
+    private long copyRange(final FileChannel in,
+                           final long position,
+                           final long count,
+                           final OutputStream out,
+                           final CRC32 crc) throws IOException {
+        final byte[] buf = new byte[COPY_BUFFER_SIZE];
+        long copied = 0;
+        while (copied < count) {
+            final ByteBuffer buffer = ByteBuffer.wrap(buf, 0,
+                    (int) Math.min(buf.length, count - copied));
+            final int read = in.read(buffer, position + copied);
+            if (read <= 0) {
+                throw new EOFException("Unexpected end of APK");
+            }
+            crc.update(buf, 0, read);
+            out.write(buf, 0, read);
+            copied += read;
+        }
+        out.flush();
+        return copied;
+    }
+
+    /**
+     * Inflates the raw deflate data of {@code compressedSize} bytes starting at {@code position}
+     * of {@code in} to {@code out}
+     *
+     * @return The actual number of bytes inflated
+     */
+    private long inflate(final FileChannel in,
+                         final long position,
+                         final long compressedSize,
+                         final OutputStream out,
+                         final CRC32 crc) throws IOException {
+        final byte[] input = new byte[COPY_BUFFER_SIZE];
+        final byte[] output = new byte[COPY_BUFFER_SIZE];
+        final Inflater inflater = new Inflater(true);
+        try {
+            long remaining = compressedSize;
+            long copied = 0;
+            boolean padded = false;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining > 0) {
+                        final ByteBuffer buffer = ByteBuffer.wrap(input, 0,
+                                (int) Math.min(input.length, remaining));
+                        final int read = in.read(buffer, position + compressedSize - remaining);
+                        if (read <= 0) {
+                            throw new EOFException("Unexpected end of APK");
+                        }
+                        remaining -= read;
+                        inflater.setInput(input, 0, read);
+                    } else if (!padded) {
+                        // Raw inflation may need an extra dummy byte to detect the end
+                        padded = true;
+                        inflater.setInput(new byte[1], 0, 1);
+                    } else {
+                        throw new EOFException("Truncated deflate data");
+                    }
+                }
+
+                final int inflated = inflater.inflate(output);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("Unexpected preset dictionary");
+                }
+                crc.update(output, 0, inflated);
+                out.write(output, 0, inflated);
+                copied += inflated;
+            }
+            out.flush();
+            return copied;
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.end();
         }
     }
 
@@ -231,10 +844,11 @@ public class ApkLibraryInstaller implements ReLinker.LibraryInstaller {
      *
      * @param in The stream to read from.
      * @param out The stream to write to.
+     * @param crc The checksum to update with the data copied.
      * @throws IOException when a stream operation fails.
      * @return The actual number of bytes copied
      */
-    private long copy(InputStream in, OutputStream out) throws IOException {
+    private long copy(InputStream in, OutputStream out, CRC32 crc) throws IOException {
         long copied = 0;
         byte[] buf = new byte[COPY_BUFFER_SIZE];
         while (true) {
@@ -242,6 +856,7 @@ public class ApkLibraryInstaller implements ReLinker.LibraryInstaller {
             if (read == -1) {
                 break;
             }
+            crc.update(buf, 0, read);
             out.write(buf, 0, read);
             copied += read;
         }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Persistent cache of the {@code DT_NEEDED} entries of extracted libraries, stored in the
+ * workaround directory so that warm starts can skip ELF parsing. An entry is only valid while the
+ * library file keeps the size, modification time and version it had when it was parsed.
+ */
+final class DependencyCache {
+    static final String FILE_NAME = "relinker.deps";
+    private static final int FORMAT_VERSION = 1;
+    private static final StateFile.PerDirectory<DependencyCache> caches =
+            new StateFile.PerDirectory<DependencyCache>() {
+                @Override
+                DependencyCache create(final File directory) {
+                    return new DependencyCache(directory);
+                }
+            };
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final StateFile.DeferredSave deferredSave = new StateFile.DeferredSave() {
+        @Override
+        void save() {
+            flush();
+        }
+    };
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * @return The process wide cache for the given workaround directory
+     */
+    static DependencyCache forDirectory(final File directory) {
+        return caches.get(directory);
+    }
+
+    DependencyCache(final File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * @return The cached dependencies of {@code library}, or {@code null} if there are none or
+     * the file has changed since they were cached
+     */
+    synchronized List<String> get(final File library, final String version) {
+        load();
+        final Entry entry = entries.get(library.getName());
+        if (entry == null || !entry.matches(library, version)) {
+            return null;
+        }
+
+        return entry.dependencies;
+    }
+
+    /**
+     * @param executor The executor to save the change on
+     */
+    synchronized void put(final File library, final String version,
+                          final List<String> dependencies, final Executor executor) {
+        load();
+        entries.put(library.getName(), new Entry(library.length(), library.lastModified(),
+                version, Collections.unmodifiableList(new ArrayList<String>(dependencies))));
+        changed(executor);
+    }
+
+    synchronized void remove(final File library, final Executor executor) {
+        load();
+        if (entries.remove(library.getName()) != null) {
+            changed(executor);
+        }
+    }
+
+    /**
+     * Writes the changes that haven't been saved yet. They are otherwise saved in the background
+     * shortly after being made.
+     */
+    synchronized void flush() {
+        if (!dirty) return;
+        dirty = false;
+        save();
+    }
+
+    private void changed(final Executor executor) {
+        // Parsing a tree of libraries caches every one of them, they are all written together
+        dirty = true;
+        deferredSave.schedule(executor);
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+
+        final boolean read = StateFile.read(file, FORMAT_VERSION, new StateFile.Reader() {
+            @Override
+            public void read(final DataInputStream in) throws IOException {
+                final int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    final String name = in.readUTF();
+                    final long size = in.readLong();
+                    final long lastModified = in.readLong();
+                    final String version = in.readBoolean() ? in.readUTF() : null;
+                    final int dependencyCount = in.readInt();
+                    final List<String> dependencies = new ArrayList<String>(dependencyCount);
+                    for (int j = 0; j < dependencyCount; ++j) {
+                        dependencies.add(in.readUTF());
+                    }
+                    entries.put(name, new Entry(size, lastModified, version,
+                            Collections.unmodifiableList(dependencies)));
+                }
+            }
+        });
+        if (!read) {
+            // Libraries without an entry are simply parsed again
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        StateFile.write(file, FORMAT_VERSION, new StateFile.Writer() {
+            @Override
+            public void write(final DataOutputStream out) throws IOException {
+                out.writeInt(entries.size());
+                for (final Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                    final Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeBoolean(entry.version != null);
+                    if (entry.version != null) {
+                        out.writeUTF(entry.version);
+                    }
+                    out.writeInt(entry.dependencies.size());
+                    for (final String dependency : entry.dependencies) {
+                        out.writeUTF(dependency);
+                    }
+                }
+            }
+        });
+    }
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final String version;
+        final List<String> dependencies;
+
+        Entry(final long size, final long lastModified, final String version,
+              final List<String> dependencies) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.version = version;
+            this.dependencies = dependencies;
+        }
+
+        boolean matches(final File library, final String version) {
+            return size == library.length()
+                    && lastModified == library.lastModified()
+                    && (this.version == null ? version == null : this.version.equals(version));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Builds the dependency graph of a set of libraries, resolving independent libraries in parallel,
+ * and returns the libraries that still have to be loaded in leaf first order.
+ * <p>
+ * The calling thread takes part in resolving, so the graph is always fully resolved even when the
+ * executor is saturated or rejects work.
+ */
+final class DependencyGraph {
+    interface Resolver {
+        /**
+         * Resolves a single library, e.g. by extracting and parsing it.
+         *
+         * @return The dependencies of {@code library}, or {@code null} if the library has been
+         * taken care of and does not need to be loaded later on
+         */
+        List<String> resolve(String library);
+    }
+
+    private final Resolver resolver;
+    private final Executor executor;
+    private final int parallelism;
+
+    private final Map<String, List<String>> resolved = new HashMap<String, List<String>>();
+    private final Set<String> scheduled = new HashSet<String>();
+    private final LinkedList<String> queue = new LinkedList<String>();
+    private int pending; // Libraries queued or being resolved
+    private int helpers; // Executor tasks currently draining the queue
+    private Throwable failure;
+
+    /**
+     * @param parallelism The maximum number of libraries resolved at once, including the calling
+     *                    thread
+     */
+    DependencyGraph(final Resolver resolver, final Executor executor, final int parallelism) {
+        this.resolver = resolver;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Resolves {@code roots} and all of their transitive dependencies.
+     *
+     * @return The libraries that must still be loaded, each after all of its dependencies
+     */
+    List<String> resolve(final List<String> roots) {
+        synchronized (this) {
+            for (final String root : roots) {
+                schedule(root);
+            }
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            final String library;
+            synchronized (this) {
+                while (queue.isEmpty() && pending > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (queue.isEmpty()) {
+                    break;
+                }
+                library = queue.removeFirst();
+            }
+            process(library);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+
+        final List<String> order = new ArrayList<String>();
+        final Set<String> visited = new HashSet<String>();
+        for (final String root : roots) {
+            visit(root, visited, order);
+        }
+        return order;
+    }
+
+    private void visit(final String library, final Set<String> visited, final List<String> order) {
+        if (!visited.add(library)) {
+            return;
+        }
+
+        final List<String> dependencies = resolved.get(library);
+        if (dependencies == null) {
+            return;
+        }
+
+        for (final String dependency : dependencies) {
+            visit(dependency, visited, order);
+        }
+        order.add(library);
+    }
+
+    private void schedule(final String library) {
+        if (failure != null || !scheduled.add(library)) {
+            return;
+        }
+
+        queue.add(library);
+        ++pending;
+        notifyAll();
+
+        if (helpers < parallelism - 1) {
+            ++helpers;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                --helpers;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final String library;
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    --helpers;
+                    return;
+                }
+                library = queue.removeFirst();
+            }
+            process(library);
+        }
+    }
+
+    private void process(final String library) {
+        List<String> dependencies = null;
+        Throwable error = null;
+        try {
+            dependencies = resolver.resolve(library);
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        synchronized (this) {
+            resolved.put(library, dependencies);
+            --pending;
+
+            if (error != null && failure == null) {
+                // Stop resolving, the libraries already being resolved are left to finish
+                failure = error;
+                pending -= queue.size();
+                queue.clear();
+            }
+
+            if (dependencies != null) {
+                for (final String dependency : dependencies) {
+                    schedule(dependency);
+                }
+            }
+            notifyAll();
+        }
+    }
+}
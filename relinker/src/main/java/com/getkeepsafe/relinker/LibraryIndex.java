@@ -0,0 +1,438 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Index of the native libraries ({@code lib/<abi>/<name>}) contained in an APK, built from a
+ * single scan of its central directory. Indexes are shared process wide and persisted in the
+ * workaround directory, keyed by APK path, size and modification time, so that later launches
+ * don't have to scan the APK at all.
+ */
+final class LibraryIndex {
+    static final String FILE_NAME = "relinker.index";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int UTF8_FLAG = 0x800;
+    private static final String LIB_PREFIX = "lib/";
+
+    private static final Map<String, LibraryIndex> indexes = new HashMap<String, LibraryIndex>();
+    private static final Set<String> loadedDirectories = new HashSet<String>();
+    private static final Set<String> unsavedDirectories = new HashSet<String>();
+    private static final StateFile.PerDirectory<StateFile.DeferredSave> saves =
+            new StateFile.PerDirectory<StateFile.DeferredSave>() {
+                @Override
+                StateFile.DeferredSave create(final File directory) {
+                    return new StateFile.DeferredSave() {
+                        @Override
+                        void save() {
+                            flush(directory);
+                        }
+                    };
+                }
+            };
+
+    final String apkPath;
+    final long lastModified;
+    final long length;
+    private final Map<String, Library> libraries;
+
+    LibraryIndex(final String apkPath, final long lastModified, final long length,
+                 final Map<String, Library> libraries) {
+        this.apkPath = apkPath;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.libraries = libraries;
+    }
+
+    /**
+     * @return The index of {@code apk}, read from memory or {@code directory} when it is still
+     * up to date, or built by scanning the APK otherwise
+     * @param directory The directory to persist indexes in, or {@code null} to keep them in memory
+     * @param executor The executor to persist a new index on
+     */
+    static LibraryIndex forApk(final File apk, final File directory, final Executor executor)
+            throws IOException {
+        final String path = apk.getAbsolutePath();
+        synchronized (indexes) {
+            if (directory != null && loadedDirectories.add(directory.getAbsolutePath())) {
+                load(new File(directory, FILE_NAME));
+            }
+
+            final LibraryIndex index = indexes.get(path);
+            if (index != null && index.matches(apk)) {
+                return index;
+            }
+        }
+
+        final LibraryIndex index = scan(apk);
+        synchronized (indexes) {
+            indexes.put(path, index);
+            if (directory != null) {
+                unsavedDirectories.add(directory.getAbsolutePath());
+            }
+        }
+        if (directory != null) {
+            saves.get(directory).schedule(executor);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the indexes built since {@code directory} was last saved to. They are otherwise
+     * saved in the background shortly after being built.
+     */
+    static void flush(final File directory) {
+        synchronized (indexes) {
+            if (unsavedDirectories.remove(directory.getAbsolutePath())) {
+                save(new File(directory, FILE_NAME));
+            }
+        }
+    }
+
+    /**
+     * Forgets every index held in memory, so that the next lookup reads them from disk again
+     */
+    static void clear() {
+        synchronized (indexes) {
+            indexes.clear();
+            loadedDirectories.clear();
+            unsavedDirectories.clear();
+        }
+    }
+
+    /**
+     * @return The library named {@code name} for the first of {@code abis} that has one, or
+     * {@code null} if there is none
+     */
+    Library find(final String[] abis, final String name) {
+        for (final String abi : abis) {
+            final Library library = get(abi, name);
+            if (library != null) {
+                return library;
+            }
+        }
+
+        return null;
+    }
+
+    Library get(final String abi, final String name) {
+        return libraries.get(abi + '/' + name);
+    }
+
+    /**
+     * @return The ABIs that the library named {@code name} is available for
+     */
+    Set<String> abisFor(final String name) {
+        final Set<String> abis = new LinkedHashSet<String>();
+        for (final Library library : libraries.values()) {
+            if (library.name.equals(name)) {
+                abis.add(library.abi);
+            }
+        }
+        return abis;
+    }
+
+    private boolean matches(final File apk) {
+        return lastModified == apk.lastModified() && length == apk.length();
+    }
+
+    /**
+     * Builds the index of {@code apk} by reading its central directory. Archives that can't be
+     * read that way (e.g. ZIP64) are enumerated through {@link java.util.zip.ZipFile} instead,
+     * in which case the local header offsets are unknown.
+     */
+    static LibraryIndex scan(final File apk) throws IOException {
+        final long lastModified = apk.lastModified();
+        final RandomAccessFile file = new RandomAccessFile(apk, "r");
+        try {
+            final long length = file.length();
+            try {
+                return new LibraryIndex(apk.getAbsolutePath(), lastModified, length,
+                        readCentralDirectory(file));
+            } catch (ZipException e) {
+                return new LibraryIndex(apk.getAbsolutePath(), lastModified, length,
+                        enumerateEntries(apk));
+            }
+        } finally {
+            StateFile.closeSilently(file);
+        }
+    }
+
+    private static Map<String, Library> readCentralDirectory(final RandomAccessFile file)
+            throws IOException {
+        final ByteBuffer eocd = findEndOfCentralDirectory(file);
+        final long size = eocd.getInt(12) & 0xffffffffL;
+        final long offset = eocd.getInt(16) & 0xffffffffL;
+        if (size == 0xffffffffL || offset == 0xffffffffL || offset + size > file.length()) {
+            throw new ZipException("Unsupported central directory");
+        }
+
+        final byte[] data = new byte[(int) size];
+        file.seek(offset);
+        file.readFully(data);
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+        final Map<String, Library> libraries = new LinkedHashMap<String, Library>();
+        int position = 0;
+        while (position + CENTRAL_DIRECTORY_ENTRY_SIZE <= data.length) {
+            if (buffer.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("Bad central directory entry at " + position);
+            }
+
+            final int flags = buffer.getShort(position + 8) & 0xffff;
+            final int method = buffer.getShort(position + 10) & 0xffff;
+            final long crc = buffer.getInt(position + 16) & 0xffffffffL;
+            final long compressedSize = buffer.getInt(position + 20) & 0xffffffffL;
+            final long uncompressedSize = buffer.getInt(position + 24) & 0xffffffffL;
+            final int nameLength = buffer.getShort(position + 28) & 0xffff;
+            final int extraLength = buffer.getShort(position + 30) & 0xffff;
+            final int commentLength = buffer.getShort(position + 32) & 0xffff;
+            final long localHeaderOffset = buffer.getInt(position + 42) & 0xffffffffL;
+
+            final int nameOffset = position + CENTRAL_DIRECTORY_ENTRY_SIZE;
+            if (nameOffset + nameLength > data.length) {
+                throw new ZipException("Truncated central directory");
+            }
+
+            final String entryName = decodeName(data, nameOffset, nameLength,
+                    (flags & UTF8_FLAG) != 0);
+            if (compressedSize == 0xffffffffL || uncompressedSize == 0xffffffffL
+                    || localHeaderOffset == 0xffffffffL) {
+                throw new ZipException("Unsupported ZIP64 entry " + entryName);
+            }
+
+            add(libraries, entryName, uncompressedSize, compressedSize, crc, method,
+                    localHeaderOffset);
+            position = nameOffset + nameLength + extraLength + commentLength;
+        }
+
+        return libraries;
+    }
+
+    private static ByteBuffer findEndOfCentralDirectory(final RandomAccessFile file)
+            throws IOException {
+        final long length = file.length();
+        if (length < EOCD_SIZE) {
+            throw new ZipException("Not a zip file");
+        }
+
+        final int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        final byte[] tail = new byte[tailSize];
+        file.seek(length - tailSize);
+        file.readFully(tail);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        for (int position = tailSize - EOCD_SIZE; position >= 0; --position) {
+            if (buffer.getInt(position) == EOCD_SIGNATURE) {
+                buffer.position(position);
+                return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        throw new ZipException("End of central directory not found");
+    }
+
+    private static Map<String, Library> enumerateEntries(final File apk) throws IOException {
+        final Map<String, Library> libraries = new LinkedHashMap<String, Library>();
+        final ZipFileCache.Handle handle = ZipFileCache.acquire(apk);
+        try {
+            final Enumeration<? extends ZipEntry> entries = handle.zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                add(libraries, entry.getName(), entry.getSize(), entry.getCompressedSize(),
+                        entry.getCrc(), entry.getMethod(), -1);
+            }
+        } finally {
+            handle.close();
+        }
+        return libraries;
+    }
+
+    private static void add(final Map<String, Library> libraries, final String entryName,
+                            final long size, final long compressedSize, final long crc,
+                            final int method, final long localHeaderOffset) {
+        if (!entryName.startsWith(LIB_PREFIX)) return;
+
+        final int separator = entryName.indexOf('/', LIB_PREFIX.length());
+        if (separator == -1 || separator == LIB_PREFIX.length()
+                || separator == entryName.length() - 1
+                || entryName.indexOf('/', separator + 1) != -1) {
+            return;
+        }
+
+        final Library library = new Library(entryName.substring(LIB_PREFIX.length(), separator),
+                entryName.substring(separator + 1), size, compressedSize, crc, method,
+                localHeaderOffset);
+        libraries.put(library.abi + '/' + library.name, library);
+    }
+
+    private static String decodeName(final byte[] data, final int offset, final int length,
+                                     final boolean utf8) throws UnsupportedEncodingException {
+        return new String(data, offset, length, utf8 ? "UTF-8" : "ISO-8859-1");
+    }
+
+    private static void load(final File file) {
+        final Map<String, LibraryIndex> persisted = new HashMap<String, LibraryIndex>();
+        final boolean read = StateFile.read(file, FORMAT_VERSION, new StateFile.Reader() {
+            @Override
+            public void read(final DataInputStream in) throws IOException {
+                final int apkCount = in.readInt();
+                for (int i = 0; i < apkCount; ++i) {
+                    final String apkPath = in.readUTF();
+                    final long lastModified = in.readLong();
+                    final long length = in.readLong();
+                    final int libraryCount = in.readInt();
+                    final Map<String, Library> libraries = new LinkedHashMap<String, Library>();
+                    for (int j = 0; j < libraryCount; ++j) {
+                        final Library library = new Library(in.readUTF(), in.readUTF(),
+                                in.readLong(), in.readLong(), in.readLong(), in.readInt(),
+                                in.readLong());
+                        libraries.put(library.abi + '/' + library.name, library);
+                    }
+                    persisted.put(apkPath,
+                            new LibraryIndex(apkPath, lastModified, length, libraries));
+                }
+            }
+        });
+        if (!read) {
+            // The APKs will be scanned again
+            return;
+        }
+
+        for (final Map.Entry<String, LibraryIndex> entry : persisted.entrySet()) {
+            if (!indexes.containsKey(entry.getKey())) {
+                indexes.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void save(final File file) {
+        StateFile.write(file, FORMAT_VERSION, new StateFile.Writer() {
+            @Override
+            public void write(final DataOutputStream out) throws IOException {
+                out.writeInt(indexes.size());
+                for (final LibraryIndex index : indexes.values()) {
+                    out.writeUTF(index.apkPath);
+                    out.writeLong(index.lastModified);
+                    out.writeLong(index.length);
+                    out.writeInt(index.libraries.size());
+                    for (final Library library : index.libraries.values()) {
+                        out.writeUTF(library.abi);
+                        out.writeUTF(library.name);
+                        out.writeLong(library.size);
+                        out.writeLong(library.compressedSize);
+                        out.writeLong(library.crc);
+                        out.writeInt(library.method);
+                        out.writeLong(library.localHeaderOffset);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A native library stored in the APK
+     */
+    static final class Library {
+        final String abi;
+        final String name;
+        final long size;
+        final long compressedSize;
+        final long crc;
+        final int method;
+        /** Offset of the entry's local file header, or -1 if unknown */
+        final long localHeaderOffset;
+
+        Library(final String abi, final String name, final long size, final long compressedSize,
+                final long crc, final int method, final long localHeaderOffset) {
+            this.abi = abi;
+            this.name = name;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.crc = crc;
+            this.method = method;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        String entryName() {
+            return LIB_PREFIX + abi + '/' + name;
+        }
+
+        /**
+         * @return {@code true} if the entry can be copied without opening the APK as a
+         * {@link java.util.zip.ZipFile}, since its data can be located and decoded directly
+         */
+        boolean isReadableFromApk() {
+            return localHeaderOffset >= 0
+                    && (method == ZipEntry.STORED || method == ZipEntry.DEFLATED);
+        }
+
+        /**
+         * Reads the entry's local file header, whose extra field may differ from the one in the
+         * central directory, to find where its data starts in {@code apk}
+         *
+         * @return The offset of the entry's data, or -1 if unknown
+         */
+        long dataOffset(final File apk) throws IOException {
+            if (localHeaderOffset < 0) {
+                return -1;
+            }
+
+            final byte[] header = new byte[LOCAL_HEADER_SIZE];
+            final RandomAccessFile file = new RandomAccessFile(apk, "r");
+            try {
+                file.seek(localHeaderOffset);
+                file.readFully(header);
+            } finally {
+                StateFile.closeSilently(file);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad local header for " + entryName());
+            }
+
+            return localHeaderOffset + LOCAL_HEADER_SIZE + (buffer.getShort(26) & 0xffff)
+                    + (buffer.getShort(28) & 0xffff);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Manifest of the libraries extracted to the workaround directory: which library and version
+ * each file holds, its size and when it was last loaded. It lets old versions of a library be
+ * found without listing the directory, and the least recently used libraries be evicted when
+ * there isn't enough space left to extract another one. Libraries loaded by the running process
+ * are never evicted.
+ */
+final class LibraryManifest {
+    static final String FILE_NAME = "relinker.manifest";
+    private static final int FORMAT_VERSION = 1;
+    // Loading the same libraries on every launch shouldn't mean writing the manifest every time
+    private static final long SAVE_INTERVAL_MS = 60 * 60 * 1000;
+    private static final StateFile.PerDirectory<LibraryManifest> manifests =
+            new StateFile.PerDirectory<LibraryManifest>() {
+                @Override
+                LibraryManifest create(final File directory) {
+                    return new LibraryManifest(directory);
+                }
+            };
+
+    private final File directory;
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // The names of the files in entries, by the library they hold
+    private final Map<String, Set<String>> filesByLibrary = new HashMap<String, Set<String>>();
+    private final Set<String> inUse = new HashSet<String>();
+    private final StateFile.DeferredSave deferredSave = new StateFile.DeferredSave() {
+        @Override
+        void save() {
+            flush();
+        }
+    };
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * @return The process wide manifest of the given workaround directory
+     */
+    static LibraryManifest forDirectory(final File directory) {
+        return manifests.get(directory);
+    }
+
+    LibraryManifest(final File directory) {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Records that {@code file}, holding {@code version} of the library {@code mappedName}, was
+     * just loaded
+     *
+     * @param executor The executor to save the change on
+     * @return {@code true} if this is the first file recorded for the library
+     */
+    synchronized boolean touch(final File file, final String mappedName, final String version,
+                               final Executor executor) {
+        return touch(file, mappedName, version, System.currentTimeMillis(), executor);
+    }
+
+    synchronized boolean touch(final File file,
+                               final String mappedName,
+                               final String version,
+                               final long time,
+                               final Executor executor) {
+        load();
+        final boolean firstOfLibrary = !filesByLibrary.containsKey(mappedName);
+        inUse.add(file.getName());
+
+        final Entry entry = new Entry(mappedName, version, file.length(), time);
+        final Entry previous = put(file.getName(), entry);
+        if (previous == null || !previous.describes(entry)
+                || time - previous.lastUsed >= SAVE_INTERVAL_MS) {
+            changed(executor);
+        }
+        return firstOfLibrary;
+    }
+
+    /**
+     * @return Every recorded file holding a version of the library {@code mappedName}
+     */
+    synchronized List<File> filesOf(final String mappedName) {
+        load();
+        final List<File> files = new ArrayList<File>();
+        final Set<String> names = filesByLibrary.get(mappedName);
+        if (names != null) {
+            for (final String name : names) {
+                files.add(new File(directory, name));
+            }
+        }
+        return files;
+    }
+
+    synchronized void remove(final File file, final Executor executor) {
+        load();
+        if (forget(file.getName()) != null) {
+            changed(executor);
+        }
+    }
+
+    /**
+     * Deletes the least recently used libraries, other than those loaded by this process and
+     * {@code keep}, until at least {@code bytes} have been freed or there is nothing left to
+     * delete.
+     *
+     * @param executor The executor to save the change on
+     * @return The number of bytes freed
+     */
+    synchronized long evict(final long bytes, final File keep, final Executor executor) {
+        load();
+        final List<Map.Entry<String, Entry>> candidates =
+                new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(final Map.Entry<String, Entry> a,
+                               final Map.Entry<String, Entry> b) {
+                final long first = a.getValue().lastUsed;
+                final long second = b.getValue().lastUsed;
+                return first < second ? -1 : (first > second ? 1 : 0);
+            }
+        });
+
+        final DependencyCache dependencyCache = DependencyCache.forDirectory(directory);
+        long freed = 0;
+        boolean removed = false;
+        for (final Map.Entry<String, Entry> candidate : candidates) {
+            if (freed >= bytes) break;
+
+            final String name = candidate.getKey();
+            if (inUse.contains(name) || name.equals(keep.getName())) continue;
+
+            final File library = new File(directory, name);
+            if (library.delete() || !library.exists()) {
+                freed += candidate.getValue().size;
+                forget(name);
+                LibraryMetadata.delete(library);
+                dependencyCache.remove(library, executor);
+                removed = true;
+            }
+        }
+
+        if (removed) {
+            changed(executor);
+        }
+        return freed;
+    }
+
+    /**
+     * Writes the changes that haven't been saved yet. They are otherwise saved in the background
+     * shortly after being made.
+     */
+    synchronized void flush() {
+        if (!dirty) return;
+        dirty = false;
+        save();
+    }
+
+    private void changed(final Executor executor) {
+        // Loading several libraries touches each of them, the manifest is written once for all
+        dirty = true;
+        deferredSave.schedule(executor);
+    }
+
+    private Entry put(final String name, final Entry entry) {
+        final Entry previous = forget(name);
+        entries.put(name, entry);
+        Set<String> names = filesByLibrary.get(entry.library);
+        if (names == null) {
+            names = new HashSet<String>();
+            filesByLibrary.put(entry.library, names);
+        }
+        names.add(name);
+        return previous;
+    }
+
+    private Entry forget(final String name) {
+        final Entry entry = entries.remove(name);
+        if (entry != null) {
+            final Set<String> names = filesByLibrary.get(entry.library);
+            names.remove(name);
+            if (names.isEmpty()) {
+                filesByLibrary.remove(entry.library);
+            }
+        }
+        return entry;
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+
+        final boolean read = StateFile.read(file, FORMAT_VERSION, new StateFile.Reader() {
+            @Override
+            public void read(final DataInputStream in) throws IOException {
+                final int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    final String name = in.readUTF();
+                    final String library = in.readUTF();
+                    final String version = in.readBoolean() ? in.readUTF() : null;
+                    put(name, new Entry(library, version, in.readLong(), in.readLong()));
+                }
+            }
+        });
+        if (!read) {
+            // The manifest is rebuilt as libraries get loaded, until then nothing is evicted
+            entries.clear();
+            filesByLibrary.clear();
+        }
+    }
+
+    private void save() {
+        StateFile.write(file, FORMAT_VERSION, new StateFile.Writer() {
+            @Override
+            public void write(final DataOutputStream out) throws IOException {
+                out.writeInt(entries.size());
+                for (final Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                    final Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeUTF(entry.library);
+                    out.writeBoolean(entry.version != null);
+                    if (entry.version != null) {
+                        out.writeUTF(entry.version);
+                    }
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastUsed);
+                }
+            }
+        });
+    }
+
+    private static final class Entry {
+        final String library;
+        final String version;
+        final long size;
+        final long lastUsed;
+
+        Entry(final String library, final String version, final long size, final long lastUsed) {
+            this.library = library;
+            this.version = version;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+
+        boolean describes(final Entry other) {
+            return library.equals(other.library)
+                    && (version == null ? other.version == null : version.equals(other.version))
+                    && size == other.size;
+        }
+    }
+}
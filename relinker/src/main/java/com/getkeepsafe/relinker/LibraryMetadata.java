@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The size and CRC of the APK entry an extracted library was copied from, kept in a small hidden
+ * file next to the library. Comparing it with the APK's central directory tells whether the
+ * extracted copy is still up to date without reading the library itself.
+ */
+final class LibraryMetadata {
+    private static final String PREFIX = ".";
+    private static final String SUFFIX = ".crc";
+    private static final int FORMAT_VERSION = 1;
+
+    final long size;
+    final long crc;
+
+    LibraryMetadata(final long size, final long crc) {
+        this.size = size;
+        this.crc = crc;
+    }
+
+    /**
+     * @return The metadata file of {@code library}. Its name starts with a dot so that it never
+     * matches the prefix of another library's files.
+     */
+    static File fileFor(final File library) {
+        return new File(library.getParentFile(), PREFIX + library.getName() + SUFFIX);
+    }
+
+    /**
+     * @return The metadata of {@code library}, or {@code null} if there is none or it can't be
+     * read
+     */
+    static LibraryMetadata read(final File library) {
+        final long[] values = new long[2];
+        final boolean read = StateFile.read(fileFor(library), FORMAT_VERSION,
+                new StateFile.Reader() {
+                    @Override
+                    public void read(final DataInputStream in) throws IOException {
+                        values[0] = in.readLong();
+                        values[1] = in.readLong();
+                    }
+                });
+        return read ? new LibraryMetadata(values[0], values[1]) : null;
+    }
+
+    /**
+     * Records the metadata of {@code library}. This is best effort: without metadata the library
+     * is simply considered out of date and extracted again.
+     */
+    void write(final File library) {
+        StateFile.write(fileFor(library), FORMAT_VERSION, new StateFile.Writer() {
+            @Override
+            public void write(final DataOutputStream out) throws IOException {
+                out.writeLong(size);
+                out.writeLong(crc);
+            }
+        });
+    }
+
+    static void delete(final File library) {
+        fileFor(library).delete();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handle to an asynchronous library load. Besides waiting on the load like any other
+ * {@link Future}, {@link ReLinker.LoadListener}s can be chained onto it; they are called once the
+ * load completes, on the thread that completed it, or right away if it already has.
+ * <p>
+ * A load can only be cancelled before it starts, a native library cannot be unloaded.
+ */
+public final class LoadFuture implements Future<LoadResult> {
+    private final List<ReLinker.LoadListener> listeners = new ArrayList<ReLinker.LoadListener>();
+    // Set by whichever of run() and cancel() comes first, so that the other one does nothing
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final FutureTask<LoadResult> task;
+
+    LoadFuture(final Callable<LoadResult> load) {
+        this.task = new FutureTask<LoadResult>(load) {
+            @Override
+            protected void done() {
+                final List<ReLinker.LoadListener> toNotify;
+                synchronized (listeners) {
+                    toNotify = new ArrayList<ReLinker.LoadListener>(listeners);
+                    listeners.clear();
+                }
+
+                for (final ReLinker.LoadListener listener : toNotify) {
+                    notifyListener(listener);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The {@link Runnable} that performs the load
+     */
+    Runnable task() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (started.compareAndSet(false, true)) {
+                    task.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * Registers a listener to be notified when the load completes. Cancellation is reported as a
+     * failure with a {@link CancellationException}.
+     *
+     * @return This future, for chaining
+     */
+    public LoadFuture addListener(final ReLinker.LoadListener listener) {
+        synchronized (listeners) {
+            if (!task.isDone()) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+
+        notifyListener(listener);
+        return this;
+    }
+
+    private void notifyListener(final ReLinker.LoadListener listener) {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            listener.failure(e.getCause());
+            return;
+        } catch (CancellationException e) {
+            listener.failure(e);
+            return;
+        } catch (InterruptedException e) {
+            // Cannot happen, the task is done
+            Thread.currentThread().interrupt();
+            listener.failure(e);
+            return;
+        }
+
+        listener.success();
+    }
+
+    /**
+     * Cancels the load if it hasn't started yet. A load that is running is never interrupted,
+     * whatever {@code mayInterruptIfRunning} says, since the library would still get loaded.
+     *
+     * @return {@code true} if the load was cancelled before it started
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return started.compareAndSet(false, true) && task.cancel(false);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    @Override
+    public LoadResult get() throws InterruptedException, ExecutionException {
+        return task.get();
+    }
+
+    @Override
+    public LoadResult get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return task.get(timeout, unit);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+/**
+ * Describes how a library ended up being loaded.
+ */
+public final class LoadResult {
+    public final String library;
+    public final String version;
+    /** The path the library was loaded from, or {@code null} if it was loaded normally */
+    public final String path;
+    /** {@code true} if the library was extracted and re-linked rather than loaded normally */
+    public final boolean relinked;
+
+    LoadResult(final String library, final String version, final String path,
+               final boolean relinked) {
+        this.library = library;
+        this.version = version;
+        this.path = path;
+        this.relinked = relinked;
+    }
+
+    @Override
+    public String toString() {
+        return library + " (" + version + ") "
+                + (relinked ? "re-linked from " + path : "loaded normally");
+    }
+}
@@ -18,6 +18,8 @@ package com.getkeepsafe.relinker;
 import android.content.Context;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * ReLinker is a small library to help alleviate {@link UnsatisfiedLinkError} exceptions thrown due
@@ -34,6 +36,80 @@ public class ReLinker {
         void log(String message);
     }
 
+    /**
+     * The phases of a load that are reported to a {@link MetricsListener}
+     */
+    public enum Phase {
+        /** Attempting to load the library with {@link System#loadLibrary(String)} */
+        SYSTEM_LOAD,
+        /** Finding the library in the APKs, before loading or extracting it */
+        APK_LOOKUP,
+        /** Parsing the ELF file of an extracted library to find its dependencies */
+        ELF_PARSE,
+        /** Loading the library from its path with {@link System#load(String)} */
+        LOAD_PATH
+    }
+
+    /**
+     * How a library ended up being loaded
+     */
+    public enum Source {
+        /** By the system, without any workaround */
+        SYSTEM,
+        /** Straight from the APK, see {@link ReLinkerInstance#loadFromApk()} */
+        APK,
+        /** From a copy extracted to the workaround directory */
+        EXTRACTED
+    }
+
+    /**
+     * Receives the timings of every load, e.g. to attribute startup time to native library
+     * loading. Callbacks may come from any thread and should return quickly. When no listener
+     * is set, nothing is measured.
+     */
+    public interface MetricsListener {
+        /**
+         * {@code library} spent {@code durationNanos} in {@code phase}. A phase may be reported
+         * more than once for the same library, e.g. when it is looked up in the APK before and
+         * during extraction.
+         */
+        void onPhase(String library, Phase phase, long durationNanos);
+
+        /**
+         * {@code bytes} of {@code library} were extracted from the APK in {@code durationNanos}
+         */
+        void onExtracted(String library, long bytes, long durationNanos);
+
+        /**
+         * {@code library} was loaded from {@code source}, {@code durationNanos} after its load
+         * began
+         */
+        void onLoaded(String library, Source source, long durationNanos);
+    }
+
+    /**
+     * What ReLinker needs to know about the app and the device it runs on. {@link AndroidPlatform}
+     * gets it from a {@link Context}, other implementations let ReLinker find, extract and parse
+     * libraries off device, e.g. to test or benchmark it on a plain JVM.
+     */
+    public interface Platform {
+        /**
+         * @return The paths of the APKs to look for libraries in: the base APK followed by its
+         * splits
+         */
+        String[] sourceApks();
+
+        /**
+         * @return The private directory to extract libraries to
+         */
+        File workaroundLibDir();
+
+        /**
+         * @return {@code true} if the system linker can load libraries straight from an APK
+         */
+        boolean canLoadFromApk();
+    }
+
     public interface LibraryLoader {
         void loadLibrary(String libraryName);
         void loadPath(String libraryPath);
@@ -42,11 +118,56 @@ public class ReLinker {
         String[] supportedAbis();
     }
 
+    /**
+     * Installs libraries for an app described by its {@link Context}. Such an installer can only
+     * be used with an {@link AndroidPlatform}; implement {@link PlatformLibraryInstaller} to
+     * install libraries for any {@link Platform}.
+     */
     public interface LibraryInstaller {
         void installLibrary(Context context, String[] abis, String mappedLibraryName,
                             File destination, ReLinkerInstance logger);
     }
 
+    /**
+     * A {@link LibraryInstaller} that works with any {@link Platform}. ReLinker always calls the
+     * {@link Platform} variant of {@link #installLibrary} of such an installer.
+     */
+    public interface PlatformLibraryInstaller extends LibraryInstaller {
+        void installLibrary(Platform platform, String[] abis, String mappedLibraryName,
+                            File destination, ReLinkerInstance logger);
+    }
+
+    /**
+     * A {@link LibraryInstaller} that can also extract several libraries in one pass, e.g. to
+     * avoid opening the same APK once per library
+     */
+    public interface BatchLibraryInstaller extends PlatformLibraryInstaller {
+        void installLibraries(Platform platform, String[] abis, String[] mappedLibraryNames,
+                              File[] destinations, ReLinkerInstance logger);
+    }
+
+    /**
+     * A {@link LibraryInstaller} that can tell when a library doesn't need to be extracted at
+     * all, because it is stored uncompressed and page aligned in the APK
+     */
+    public interface DirectLibraryInstaller extends PlatformLibraryInstaller {
+        /**
+         * @return The {@code apk!/lib/<abi>/<name>} path to load the library from, or
+         * {@code null} if it has to be extracted
+         */
+        String findLibraryInApk(Platform platform, String[] abis, String mappedLibraryName,
+                                ReLinkerInstance logger);
+    }
+
+    /**
+     * A {@link LibraryInstaller} that can tell whether a previously extracted library is still
+     * an up to date copy of the one in the APK
+     */
+    public interface VerifiableLibraryInstaller extends PlatformLibraryInstaller {
+        boolean isInstalled(Platform platform, String[] abis, String mappedLibraryName,
+                            File destination, ReLinkerInstance logger);
+    }
+
     public static void loadLibrary(final Context context, final String library) {
         loadLibrary(context, library, null, null);
     }
@@ -70,6 +191,17 @@ public class ReLinker {
         new ReLinkerInstance().loadLibrary(context, library, version, listener);
     }
 
+    public static LoadFuture loadLibraryAsync(final Context context,
+                                              final String library,
+                                              final String version) {
+        return new ReLinkerInstance().loadLibraryAsync(context, library, version);
+    }
+
+    public static List<LoadResult> loadLibraries(final Context context,
+                                                 final String... libraries) {
+        return new ReLinkerInstance().loadLibraries(context, libraries);
+    }
+
     public static ReLinkerInstance force() {
         return new ReLinkerInstance().force();
     }
@@ -78,9 +210,29 @@ public class ReLinker {
         return new ReLinkerInstance().log(logger);
     }
 
+    public static ReLinkerInstance metrics(final MetricsListener listener) {
+        return new ReLinkerInstance().metrics(listener);
+    }
+
     public static ReLinkerInstance recursively() {
         return new ReLinkerInstance().recursively();
     }
 
+    public static ReLinkerInstance loadFromApk() {
+        return new ReLinkerInstance().loadFromApk();
+    }
+
+    public static ReLinkerInstance executor(final Executor executor) {
+        return new ReLinkerInstance().executor(executor);
+    }
+
+    public static ReLinkerInstance retryPolicy(final RetryPolicy retryPolicy) {
+        return new ReLinkerInstance().retryPolicy(retryPolicy);
+    }
+
+    public static ReLinkerInstance extractionParallelism(final int parallelism) {
+        return new ReLinkerInstance().extractionParallelism(parallelism);
+    }
+
     private ReLinker() {}
 }
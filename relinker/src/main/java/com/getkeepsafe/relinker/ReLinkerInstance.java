@@ -16,28 +16,51 @@
 package com.getkeepsafe.relinker;
 
 import android.content.Context;
-import android.util.Log;
 
 import com.getkeepsafe.relinker.elf.ElfParser;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ReLinkerInstance {
-    private static final String LIB_DIR = "lib";
-
-    protected final Set<String> loadedLibraries = new HashSet<String>();
+    protected final Set<String> loadedLibraries =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentHashMap<String, LoadResult> loadResults =
+            new ConcurrentHashMap<String, LoadResult>();
+    // Extractions are shared by every instance, keyed by the absolute path of their destination,
+    // since each static ReLinker call creates an instance of its own
+    private static final ConcurrentHashMap<String, FutureTask<?>> installing =
+            new ConcurrentHashMap<String, FutureTask<?>>();
+    private final ConcurrentHashMap<String, FutureTask<?>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<?>>();
     protected final ReLinker.LibraryLoader libraryLoader;
     protected final ReLinker.LibraryInstaller libraryInstaller;
 
     protected boolean force;
     protected boolean recursive;
+    protected boolean loadFromApk;
     protected ReLinker.Logger logger;
+    protected ReLinker.MetricsListener metricsListener;
+    protected Executor executor;
+    protected int extractionParallelism = SharedExecutor.PARALLELISM;
+    protected RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
 
     protected ReLinkerInstance() {
         this(new SystemLibraryLoader(), new ApkLibraryInstaller());
@@ -65,6 +88,14 @@ public class ReLinkerInstance {
         return this;
     }
 
+    /**
+     * Reports how long each phase of a load takes to the given {@link ReLinker.MetricsListener}
+     */
+    public ReLinkerInstance metrics(final ReLinker.MetricsListener listener) {
+        this.metricsListener = listener;
+        return this;
+    }
+
     /**
      * Forces any previously extracted / re-linked libraries to be cleaned up before loading
      */
@@ -82,6 +113,51 @@ public class ReLinkerInstance {
         return this;
     }
 
+    /**
+     * Loads libraries that are stored uncompressed and page aligned in the APK straight from the
+     * APK on API 23+, instead of extracting a copy of them first. Libraries that don't qualify
+     * are still extracted.
+     */
+    public ReLinkerInstance loadFromApk() {
+        this.loadFromApk = true;
+        return this;
+    }
+
+    /**
+     * Runs asynchronous loads, the parallel parts of recursive loads and the background saves of
+     * ReLinker's state files on the given {@link Executor} instead of ReLinker's own small pool
+     * of daemon threads
+     */
+    public ReLinkerInstance executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Limits how many libraries are extracted at the same time, to avoid thrashing slow storage.
+     * Defaults to the number of CPU cores, between 2 and 4.
+     */
+    public ReLinkerInstance extractionParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+
+        this.extractionParallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets how failed IO operations are retried while extracting libraries
+     */
+    public ReLinkerInstance retryPolicy(final RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("Given retry policy is null");
+        }
+
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
     /**
      * Utilizes the regular system call to attempt to load a native library. If a failure occurs,
      * then the function extracts native .so library out of the app's APK and attempts to load it.
@@ -102,7 +178,8 @@ public class ReLinkerInstance {
 
     /**
      * The same call as {@link #loadLibrary(Context, String)}, however if a
-     * {@link ReLinker.LoadListener} is provided, the function is executed asynchronously.
+     * {@link ReLinker.LoadListener} is provided, the function is executed asynchronously on the
+     * {@link #executor(Executor) executor} of this instance.
      */
     public void loadLibrary(final Context context,
                             final String library,
@@ -123,98 +200,774 @@ public class ReLinkerInstance {
                             final String library,
                             final String version,
                             final ReLinker.LoadListener listener) {
-        if (context == null) {
-            throw new IllegalArgumentException("Given context is null");
+        loadLibrary(new AndroidPlatform(context), library, version, listener);
+    }
+
+    /**
+     * The same call as {@link #loadLibrary(Context, String, String)}, executed asynchronously on
+     * the {@link #executor(Executor) executor} of this instance.
+     *
+     * @param context The {@link Context} to get a workaround directory from
+     * @param library The library you wish to load
+     * @param version The version of the library you wish to load, or {@code null}
+     * @return A {@link LoadFuture} to wait on the load, or to be notified of its completion. Its
+     * {@link LoadResult} tells whether the library was loaded normally or re-linked, and from where
+     */
+    public LoadFuture loadLibraryAsync(final Context context,
+                                       final String library,
+                                       final String version) {
+        return loadLibraryAsync(new AndroidPlatform(context), library, version);
+    }
+
+    /**
+     * The same call as {@link #loadLibrary(Context, String)}, with the APKs and the workaround
+     * directory given by a {@link ReLinker.Platform} instead of a {@link Context}
+     */
+    public void loadLibrary(final ReLinker.Platform platform, final String library) {
+        loadLibrary(platform, library, null, null);
+    }
+
+    /**
+     * The same call as {@link #loadLibrary(Context, String, String)}, with the APKs and the
+     * workaround directory given by a {@link ReLinker.Platform} instead of a {@link Context}
+     */
+    public void loadLibrary(final ReLinker.Platform platform,
+                            final String library,
+                            final String version) {
+        loadLibrary(platform, library, version, null);
+    }
+
+    /**
+     * The same call as {@link #loadLibrary(Context, String, ReLinker.LoadListener)}, with the
+     * APKs and the workaround directory given by a {@link ReLinker.Platform} instead of a
+     * {@link Context}
+     */
+    public void loadLibrary(final ReLinker.Platform platform,
+                            final String library,
+                            final ReLinker.LoadListener listener) {
+        loadLibrary(platform, library, null, listener);
+    }
+
+    /**
+     * The same call as {@link #loadLibrary(Context, String, String, ReLinker.LoadListener)}, with
+     * the APKs and the workaround directory given by a {@link ReLinker.Platform} instead of a
+     * {@link Context}
+     *
+     * @param platform The {@link ReLinker.Platform} to find the APKs and workaround directory from
+     * @param library The library you wish to load
+     * @param version The version of the library you wish to load, or {@code null}
+     * @param listener {@link ReLinker.LoadListener} to listen for async execution, or {@code null}
+     */
+    public void loadLibrary(final ReLinker.Platform platform,
+                            final String library,
+                            final String version,
+                            final ReLinker.LoadListener listener) {
+        if (platform == null) {
+            throw new IllegalArgumentException("Given platform is null");
         }
 
         if (TextUtils.isEmpty(library)) {
             throw new IllegalArgumentException("Given library is either null or empty");
         }
 
-        log("Beginning load of %s...", library);
         if (listener == null) {
-            loadLibraryInternal(context, library, version);
+            log("Beginning load of %s...", library);
+            loadLibraryInternal(platform, library, version);
         } else {
-            new Thread(new Runnable() {
+            loadLibraryAsync(platform, library, version).addListener(listener);
+        }
+    }
+
+    /**
+     * The same call as {@link #loadLibraryAsync(Context, String, String)}, with the APKs and the
+     * workaround directory given by a {@link ReLinker.Platform} instead of a {@link Context}
+     *
+     * @param platform The {@link ReLinker.Platform} to find the APKs and workaround directory from
+     * @param library The library you wish to load
+     * @param version The version of the library you wish to load, or {@code null}
+     * @return A {@link LoadFuture} to wait on the load, or to be notified of its completion. Its
+     * {@link LoadResult} tells whether the library was loaded normally or re-linked, and from where
+     */
+    public LoadFuture loadLibraryAsync(final ReLinker.Platform platform,
+                                       final String library,
+                                       final String version) {
+        if (platform == null) {
+            throw new IllegalArgumentException("Given platform is null");
+        }
+
+        if (TextUtils.isEmpty(library)) {
+            throw new IllegalArgumentException("Given library is either null or empty");
+        }
+
+        log("Beginning load of %s...", library);
+        final LoadFuture future = new LoadFuture(new Callable<LoadResult>() {
+            @Override
+            public LoadResult call() {
+                return loadLibraryInternal(platform, library, version);
+            }
+        });
+        getExecutor().execute(future.task());
+        return future;
+    }
+
+    /**
+     * Loads several libraries in one pass. The libraries that cannot be loaded normally are
+     * extracted together, which lets a {@link ReLinker.BatchLibraryInstaller} open each APK only
+     * once, and are then loaded in dependency order.
+     * <p>
+     *     <strong>Note: This is a synchronous operation</strong>
+     *
+     * @param context The {@link Context} to get a workaround directory from
+     * @param libraries The libraries you wish to load
+     * @param versions The version of each library, or {@code null} for unversioned libraries
+     * @return How each of the {@code libraries} was loaded, in the same order
+     */
+    public List<LoadResult> loadLibraries(final Context context,
+                                          final String[] libraries,
+                                          final String[] versions) {
+        return loadLibraries(new AndroidPlatform(context), libraries, versions);
+    }
+
+    /**
+     * The same call as {@link #loadLibraries(Context, String[], String[])} for unversioned
+     * libraries
+     */
+    public List<LoadResult> loadLibraries(final Context context, final String... libraries) {
+        return loadLibraries(context, libraries, null);
+    }
+
+    /**
+     * The same call as {@link #loadLibraries(Context, String[], String[])}, with the APKs and the
+     * workaround directory given by a {@link ReLinker.Platform} instead of a {@link Context}
+     *
+     * @param platform The {@link ReLinker.Platform} to find the APKs and workaround directory from
+     * @param libraries The libraries you wish to load
+     * @param versions The version of each library, or {@code null} for unversioned libraries
+     * @return How each of the {@code libraries} was loaded, in the same order
+     */
+    public List<LoadResult> loadLibraries(final ReLinker.Platform platform,
+                                          final String[] libraries,
+                                          final String[] versions) {
+        if (platform == null) {
+            throw new IllegalArgumentException("Given platform is null");
+        }
+
+        if (libraries == null || (versions != null && versions.length != libraries.length)) {
+            throw new IllegalArgumentException("Given libraries or versions are invalid");
+        }
+
+        for (final String library : libraries) {
+            if (TextUtils.isEmpty(library)) {
+                throw new IllegalArgumentException("Given library is either null or empty");
+            }
+        }
+
+        if (logger != null) {
+            log("Beginning load of %s...", Arrays.toString(libraries));
+        }
+        final long start = System.nanoTime();
+        final Map<String, LoadResult> results = new HashMap<String, LoadResult>();
+        final List<String> relink = new ArrayList<String>();
+        final List<String> relinkVersions = new ArrayList<String>();
+        for (int i = 0; i < libraries.length; ++i) {
+            final String library = libraries[i];
+            final String version = versions == null ? null : versions[i];
+            if (isLoadedPreviously(library)) {
+                final LoadResult previous = loadResults.get(library);
+                results.put(library, previous != null
+                        ? previous
+                        : new LoadResult(library, version, null, false));
+            } else if (loadNormally(library, version)) {
+                results.put(library, loaded(loadResults.get(library), start));
+            } else if (!relink.contains(library) && !results.containsKey(library)) {
+                log("%s (%s) was not loaded normally, re-linking...", library, version);
+                final String pathInApk = findLibraryInApk(platform, library);
+                if (pathInApk != null) {
+                    results.put(library, loaded(loadRelinked(library, version, pathInApk), start));
+                } else {
+                    relink.add(library);
+                    relinkVersions.add(version);
+                }
+            }
+        }
+
+        if (!relink.isEmpty()) {
+            final File[] workaroundFiles = installAllIfNeeded(platform, relink, relinkVersions);
+
+            // Order the batch by its own dependencies, and pull in the others when recursive
+            final Map<String, List<String>> resolved = new HashMap<String, List<String>>();
+            for (int i = 0; i < relink.size(); ++i) {
+                final List<String> dependencies =
+                        dependenciesOf(platform, relink.get(i), workaroundFiles[i],
+                                relinkVersions.get(i));
+                if (!recursive) {
+                    dependencies.retainAll(relink);
+                }
+                resolved.put(relink.get(i), dependencies);
+            }
+
+            for (final String library : resolveDependencyGraph(platform, relink, resolved)) {
+                final int index = relink.indexOf(library);
+                if (index == -1) {
+                    loadRelinked(platform, library, null,
+                            getWorkaroundLibFile(platform, library, null));
+                } else {
+                    results.put(library, loaded(loadRelinked(platform, library,
+                            relinkVersions.get(index), workaroundFiles[index]), start));
+                }
+            }
+        }
+
+        final List<LoadResult> ordered = new ArrayList<LoadResult>(libraries.length);
+        for (final String library : libraries) {
+            ordered.add(results.get(library));
+        }
+        return ordered;
+    }
+
+    /**
+     * The same call as {@link #loadLibraries(ReLinker.Platform, String[], String[])} for
+     * unversioned libraries
+     */
+    public List<LoadResult> loadLibraries(final ReLinker.Platform platform,
+                                          final String... libraries) {
+        return loadLibraries(platform, libraries, null);
+    }
+
+    private LoadResult loadLibraryInternal(final ReLinker.Platform platform,
+                                           final String library,
+                                           final String version) {
+        return runOnce(inFlight, library, new Callable<LoadResult>() {
+            @Override
+            public LoadResult call() {
+                return loadLibraryOnce(platform, library, version);
+            }
+        });
+    }
+
+    private LoadResult loadLibraryOnce(final ReLinker.Platform platform,
+                                       final String library,
+                                       final String version) {
+        if (isLoadedPreviously(library)) {
+            final LoadResult previous = loadResults.get(library);
+            return previous != null ? previous : new LoadResult(library, version, null, false);
+        }
+
+        final long start = System.nanoTime();
+        if (loadNormally(library, version)) {
+            return loaded(loadResults.get(library), start);
+        }
+
+        log("%s (%s) was not loaded normally, re-linking...", library, version);
+        final String pathInApk = findLibraryInApk(platform, library);
+        if (pathInApk != null) {
+            return loaded(loadRelinked(library, version, pathInApk), start);
+        }
+
+        final File workaroundFile = installIfNeeded(platform, library, version);
+
+        if (recursive) {
+            final List<String> dependencies =
+                    dependenciesOf(platform, library, workaroundFile, version);
+            for (final String dependency : resolveDependencyGraph(platform, dependencies,
+                    Collections.<String, List<String>>emptyMap())) {
+                loadRelinked(platform, dependency, null,
+                        getWorkaroundLibFile(platform, dependency, null));
+            }
+        }
+
+        return loaded(loadRelinked(platform, library, version, workaroundFile), start);
+    }
+
+    /**
+     * Loads an extracted library, records it in the manifest, and then cleans up its other
+     * versions in the background
+     */
+    private LoadResult loadRelinked(final ReLinker.Platform platform,
+                                    final String library,
+                                    final String version,
+                                    final File workaroundFile) {
+        final LoadResult result = loadRelinked(library, version, workaroundFile.getAbsolutePath());
+        final LibraryManifest manifest = getLibraryManifest(platform);
+        final String mappedLibraryName = libraryLoader.mapLibraryName(library);
+        if (manifest.touch(workaroundFile, mappedLibraryName, version, getExecutor())) {
+            // Files extracted before the manifest existed can only be found by listing them. The
+            // file that was just loaded is kept, even if force() gets called in the meantime.
+            cleanupInBackground(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        loadLibraryInternal(context, library, version);
-                        listener.success();
-                    } catch (UnsatisfiedLinkError e) {
-                        listener.failure(e);
-                    } catch (MissingLibraryException e) {
-                        listener.failure(e);
-                    }
+                    deleteVersions(platform, library, workaroundFile, false);
                 }
-            }).start();
+            });
+        } else {
+            final List<File> otherVersions = manifest.filesOf(mappedLibraryName);
+            otherVersions.remove(workaroundFile);
+            if (!otherVersions.isEmpty()) {
+                cleanupInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (final File file : otherVersions) {
+                            deleteLibraryFile(platform, file);
+                        }
+                    }
+                });
+            }
         }
+        return result;
+    }
+
+    /**
+     * Runs {@code cleanup} on the executor, keeping file deletion off the loading path
+     */
+    private void cleanupInBackground(final Runnable cleanup) {
+        try {
+            getExecutor().execute(cleanup);
+        } catch (RejectedExecutionException e) {
+            log("Could not schedule cleanup of old library files: %s", e);
+        }
+    }
+
+    private LoadResult loadRelinked(final String library,
+                                    final String version,
+                                    final String path) {
+        final long start = System.nanoTime();
+        libraryLoader.loadPath(path);
+        measure(library, ReLinker.Phase.LOAD_PATH, start);
+        final LoadResult result = new LoadResult(library, version, path, true);
+        loadResults.put(library, result);
+        loadedLibraries.add(library);
+        log("%s (%s) was re-linked!", library, version);
+        return result;
     }
 
-    private void loadLibraryInternal(final Context context,
-                                     final String library,
-                                     final String version) {
+    private boolean isLoadedPreviously(final String library) {
         if (loadedLibraries.contains(library) && !force) {
             log("%s already loaded previously!", library);
-            return;
+            return true;
         }
 
+        return false;
+    }
+
+    private boolean loadNormally(final String library, final String version) {
+        final long start = System.nanoTime();
         try {
             libraryLoader.loadLibrary(library);
+            measure(library, ReLinker.Phase.SYSTEM_LOAD, start);
+            loadResults.put(library, new LoadResult(library, version, null, false));
             loadedLibraries.add(library);
             log("%s (%s) was loaded normally!", library, version);
-            return;
+            return true;
         } catch (final UnsatisfiedLinkError e) {
             // :-(
-            log("Loading the library normally failed: %s", Log.getStackTraceString(e));
+            measure(library, ReLinker.Phase.SYSTEM_LOAD, start);
+            if (logger != null) {
+                final StringWriter stackTrace = new StringWriter();
+                e.printStackTrace(new PrintWriter(stackTrace));
+                log("Loading the library normally failed: %s", stackTrace);
+            }
+            return false;
         }
+    }
 
-        log("%s (%s) was not loaded normally, re-linking...", library, version);
-        final File workaroundFile = getWorkaroundLibFile(context, library, version);
-        if (!workaroundFile.exists() || force) {
-            if (force) {
-                log("Forcing a re-link of %s (%s)...", library, version);
+    /**
+     * Extracts the library into the workaround directory unless it is already there
+     *
+     * @return The workaround library file
+     */
+    private File installIfNeeded(final ReLinker.Platform platform,
+                                 final String library,
+                                 final String version) {
+        final File workaroundFile = getWorkaroundLibFile(platform, library, version);
+        runOnce(installing, workaroundFile.getAbsolutePath(), new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (needsInstall(platform, library, workaroundFile)) {
+                    if (force) {
+                        log("Forcing a re-link of %s (%s)...", library, version);
+                        getDependencyCache(platform).remove(workaroundFile, getExecutor());
+                        cleanupOldLibFiles(platform, library, version);
+                    }
+
+                    installLibrary(platform, library, workaroundFile);
+                }
+                return null;
             }
+        });
+
+        return workaroundFile;
+    }
+
+    /**
+     * Extracts all of the given libraries that are not in the workaround directory yet, in a
+     * single call to the installer when it is a {@link ReLinker.BatchLibraryInstaller}
+     *
+     * @return The workaround library files, in the same order as {@code libraries}
+     */
+    private File[] installAllIfNeeded(final ReLinker.Platform platform,
+                                      final List<String> libraries,
+                                      final List<String> versions) {
+        final File[] workaroundFiles = new File[libraries.size()];
+        final List<Integer> claimed = new ArrayList<Integer>();
+        final List<FutureTask<Void>> claims = new ArrayList<FutureTask<Void>>();
+        final List<FutureTask<?>> others = new ArrayList<FutureTask<?>>();
+        final Throwable[] failure = new Throwable[1];
 
-            cleanupOldLibFiles(context, library, version);
-            libraryInstaller.installLibrary(context, libraryLoader.supportedAbis(),
-                    libraryLoader.mapLibraryName(library), workaroundFile, this);
+        for (int i = 0; i < workaroundFiles.length; ++i) {
+            workaroundFiles[i] = getWorkaroundLibFile(platform, libraries.get(i), versions.get(i));
+
+            // Claim the file the same way runOnce() does, so that concurrent loads wait for us
+            final FutureTask<Void> claim = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (failure[0] instanceof Error) {
+                        throw (Error) failure[0];
+                    } else if (failure[0] != null) {
+                        throw (Exception) failure[0];
+                    }
+                    return null;
+                }
+            });
+            final FutureTask<?> existing =
+                    installing.putIfAbsent(workaroundFiles[i].getAbsolutePath(), claim);
+            if (existing != null) {
+                others.add(existing);
+            } else {
+                claimed.add(i);
+                claims.add(claim);
+            }
         }
 
         try {
-            if (recursive) {
-                ElfParser parser = null;
-                final List<String> dependencies;
-                try {
-                    parser = new ElfParser(workaroundFile);
-                    dependencies = parser.parseNeededDependencies();
-                } finally {
-                    if (parser != null) {
-                        parser.close();
+            final List<Integer> toInstall = new ArrayList<Integer>();
+            for (final int i : claimed) {
+                if (needsInstall(platform, libraries.get(i), workaroundFiles[i])) {
+                    if (force) {
+                        log("Forcing a re-link of %s (%s)...", libraries.get(i), versions.get(i));
+                        getDependencyCache(platform).remove(workaroundFiles[i], getExecutor());
+                        cleanupOldLibFiles(platform, libraries.get(i), versions.get(i));
                     }
+
+                    toInstall.add(i);
+                }
+            }
+
+            if (toInstall.size() > 1
+                    && libraryInstaller instanceof ReLinker.BatchLibraryInstaller) {
+                final String[] mappedLibraryNames = new String[toInstall.size()];
+                final File[] destinations = new File[toInstall.size()];
+                for (int j = 0; j < mappedLibraryNames.length; ++j) {
+                    mappedLibraryNames[j] =
+                            libraryLoader.mapLibraryName(libraries.get(toInstall.get(j)));
+                    destinations[j] = workaroundFiles[toInstall.get(j)];
+                }
+                ((ReLinker.BatchLibraryInstaller) libraryInstaller).installLibraries(platform,
+                        libraryLoader.supportedAbis(), mappedLibraryNames, destinations, this);
+            } else {
+                for (final int i : toInstall) {
+                    installLibrary(platform, libraries.get(i), workaroundFiles[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            failure[0] = e;
+            throw e;
+        } catch (Error e) {
+            failure[0] = e;
+            throw e;
+        } finally {
+            for (int j = 0; j < claims.size(); ++j) {
+                claims.get(j).run();
+                installing.remove(workaroundFiles[claimed.get(j)].getAbsolutePath(),
+                        claims.get(j));
+            }
+        }
+
+        for (final FutureTask<?> other : others) {
+            await(other);
+        }
+
+        return workaroundFiles;
+    }
+
+    /**
+     * @return {@code true} if {@code workaroundFile} is missing, out of date, or has to be
+     * replaced because of {@link #force()}
+     */
+    private boolean needsInstall(final ReLinker.Platform platform,
+                                 final String library,
+                                 final File workaroundFile) {
+        if (force || !workaroundFile.exists()) {
+            return true;
+        }
+
+        if (libraryInstaller instanceof ReLinker.VerifiableLibraryInstaller
+                && !((ReLinker.VerifiableLibraryInstaller) libraryInstaller).isInstalled(platform,
+                        libraryLoader.supportedAbis(), libraryLoader.mapLibraryName(library),
+                        workaroundFile, this)) {
+            log("%s is out of date, extracting it again...", workaroundFile.getName());
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs {@code work} unless the same {@code key} of {@code tasks} is already being worked on
+     * by another thread, in which case this waits for that thread and shares its outcome instead.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T runOnce(final ConcurrentHashMap<String, FutureTask<?>> tasks,
+                          final String key,
+                          final Callable<T> work) {
+        final FutureTask<T> task = new FutureTask<T>(work);
+        final FutureTask<T> existing = (FutureTask<T>) tasks.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                tasks.remove(key, task);
+            }
+        } else {
+            log("Waiting for %s to finish on another thread...", key);
+        }
+
+        return await(existing == null ? task : existing);
+    }
+
+    /**
+     * Waits for {@code task} without being interruptible and rethrows its failure, if any
+     */
+    private static <T> T await(final FutureTask<T> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Looks for a copy of {@code library} that can be loaded straight from the APK. The system
+     * linker resolves the dependencies of such a library from the APK by itself, so they don't
+     * need to be re-linked.
+     *
+     * @return The {@code apk!/lib/<abi>/<name>} path to load, or {@code null} if the library has
+     * to be extracted
+     */
+    private String findLibraryInApk(final ReLinker.Platform platform, final String library) {
+        if (!loadFromApk || !platform.canLoadFromApk()
+                || !(libraryInstaller instanceof ReLinker.DirectLibraryInstaller)) {
+            return null;
+        }
+
+        final long start = System.nanoTime();
+        final String path = ((ReLinker.DirectLibraryInstaller) libraryInstaller).findLibraryInApk(
+                platform, libraryLoader.supportedAbis(), libraryLoader.mapLibraryName(library),
+                this);
+        measure(library, ReLinker.Phase.APK_LOOKUP, start);
+        return path;
+    }
+
+    /**
+     * Resolves the full graph of the given dependencies, extracting and parsing independent
+     * libraries in parallel. Libraries that load normally are loaded right away.
+     *
+     * @param resolved Libraries that have already been extracted, mapped to their dependencies
+     * @return The libraries that were re-linked, in the order they have to be loaded
+     */
+    private List<String> resolveDependencyGraph(final ReLinker.Platform platform,
+                                                final List<String> dependencies,
+                                                final Map<String, List<String>> resolved) {
+        final DependencyGraph graph = new DependencyGraph(new DependencyGraph.Resolver() {
+            @Override
+            public List<String> resolve(final String library) {
+                if (resolved.containsKey(library)) {
+                    return resolved.get(library);
                 }
-                for (final String dependency : dependencies) {
-                    loadLibrary(context, libraryLoader.unmapLibraryName(dependency));
+
+                log("Beginning load of %s...", library);
+                if (isLoadedPreviously(library) || loadNormally(library, null)) {
+                    return null;
                 }
+
+                log("%s (%s) was not loaded normally, re-linking...", library, null);
+                return dependenciesOf(platform, library, installIfNeeded(platform, library, null),
+                        null);
+            }
+        }, getExecutor(), getExtractionParallelism());
+
+        return graph.resolve(dependencies);
+    }
+
+    /**
+     * @return The unmapped names of the libraries {@code workaroundFile} depends on
+     */
+    private List<String> dependenciesOf(final ReLinker.Platform platform,
+                                        final String library,
+                                        final File workaroundFile,
+                                        final String version) {
+        final List<String> dependencies = new ArrayList<String>();
+        try {
+            for (final String dependency :
+                    parseDependencies(platform, library, workaroundFile, version)) {
+                dependencies.add(libraryLoader.unmapLibraryName(dependency));
             }
         } catch (IOException ignored) {
             // This a redundant step of the process, if our library resolving fails, it will likely
             // be picked up by the system's resolver, if not, an exception will be thrown by the
             // next statement, so its better to try twice.
+        } catch (IllegalArgumentException ignored) {
+            // Missing file, same as above
+        } catch (IllegalStateException ignored) {
+            // Malformed ELF, same as above
         }
 
-        libraryLoader.loadPath(workaroundFile.getAbsolutePath());
-        loadedLibraries.add(library);
-        log("%s (%s) was re-linked!", library, version);
+        return dependencies;
+    }
+
+    /**
+     * Resolves the libraries {@code workaroundFile} depends on. The result of parsing is cached in
+     * the workaround directory and reused for as long as the file is unchanged.
+     */
+    private List<String> parseDependencies(final ReLinker.Platform platform,
+                                           final String library,
+                                           final File workaroundFile,
+                                           final String version) throws IOException {
+        final DependencyCache cache = getDependencyCache(platform);
+        List<String> dependencies = cache.get(workaroundFile, version);
+        if (dependencies != null) {
+            log("Using cached dependencies of %s", workaroundFile.getName());
+            return dependencies;
+        }
+
+        final long start = System.nanoTime();
+        ElfParser parser = null;
+        try {
+            // Positional reads only touch the headers and the dynamic section, while a mapping of
+            // the whole library would hold on to its address space until it gets collected
+            parser = new ElfParser(workaroundFile);
+            dependencies = parser.parseNeededDependencies();
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+        measure(library, ReLinker.Phase.ELF_PARSE, start);
+
+        cache.put(workaroundFile, version, dependencies, getExecutor());
+        return dependencies;
+    }
+
+    Executor getExecutor() {
+        return executor != null ? executor : SharedExecutor.get();
+    }
+
+    int getExtractionParallelism() {
+        return extractionParallelism;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    private DependencyCache getDependencyCache(final ReLinker.Platform platform) {
+        return DependencyCache.forDirectory(getWorkaroundLibDir(platform));
+    }
+
+    private LibraryManifest getLibraryManifest(final ReLinker.Platform platform) {
+        return LibraryManifest.forDirectory(getWorkaroundLibDir(platform));
+    }
+
+    /**
+     * Extracts {@code library} with the {@link ReLinker.LibraryInstaller}. Installers that only
+     * know about {@link Context}s are given the one of an {@link AndroidPlatform}.
+     */
+    private void installLibrary(final ReLinker.Platform platform,
+                                final String library,
+                                final File destination) {
+        final String[] abis = libraryLoader.supportedAbis();
+        final String mappedLibraryName = libraryLoader.mapLibraryName(library);
+        if (libraryInstaller instanceof ReLinker.PlatformLibraryInstaller) {
+            ((ReLinker.PlatformLibraryInstaller) libraryInstaller).installLibrary(platform, abis,
+                    mappedLibraryName, destination, this);
+        } else if (platform instanceof AndroidPlatform) {
+            libraryInstaller.installLibrary(((AndroidPlatform) platform).context, abis,
+                    mappedLibraryName, destination, this);
+        } else {
+            throw new IllegalArgumentException(libraryInstaller.getClass().getName()
+                    + " needs a Context, implement ReLinker.PlatformLibraryInstaller to install "
+                    + "libraries for " + platform);
+        }
+    }
+
+    /**
+     * @return The {@link Context} of a platform that was created from one, or {@code null}. Such
+     * platforms go through the deprecated {@link Context} variants of the methods below, so that
+     * subclasses which override those keep working.
+     */
+    private static Context contextOf(final ReLinker.Platform platform) {
+        return platform.getClass() == AndroidPlatform.class
+                ? ((AndroidPlatform) platform).context
+                : null;
+    }
+
+    /**
+     * @param platform {@link ReLinker.Platform} to retrieve the workaround directory from
+     * @return A {@link File} locating the directory that can store extracted libraries
+     * for later use
+     */
+    protected File getWorkaroundLibDir(final ReLinker.Platform platform) {
+        final Context context = contextOf(platform);
+        if (context != null) {
+            return getWorkaroundLibDir(context);
+        }
+
+        return platform.workaroundLibDir();
     }
 
     /**
      * @param context {@link Context} to describe the location of it's private directories
      * @return A {@link File} locating the directory that can store extracted libraries
      * for later use
+     * @deprecated Override {@link #getWorkaroundLibDir(ReLinker.Platform)} instead. This is only
+     * called for loads given a {@link Context}.
      */
+    @Deprecated
     protected File getWorkaroundLibDir(final Context context) {
-        return context.getDir(LIB_DIR, Context.MODE_PRIVATE);
+        return new AndroidPlatform(context).workaroundLibDir();
+    }
+
+    /**
+     * @param platform {@link ReLinker.Platform} to retrieve the workaround directory from
+     * @param library The name of the library to load
+     * @param version The version of the library to load or {@code null}
+     * @return A {@link File} locating the workaround library file to load
+     */
+    protected File getWorkaroundLibFile(final ReLinker.Platform platform,
+                                        final String library,
+                                        final String version) {
+        final Context context = contextOf(platform);
+        if (context != null) {
+            return getWorkaroundLibFile(context, library, version);
+        }
+
+        return workaroundLibFile(platform, library, version);
     }
 
     /**
@@ -222,17 +975,49 @@ public class ReLinkerInstance {
      * @param library The name of the library to load
      * @param version The version of the library to load or {@code null}
      * @return A {@link File} locating the workaround library file to load
+     * @deprecated Override {@link #getWorkaroundLibFile(ReLinker.Platform, String, String)}
+     * instead. This is only called for loads given a {@link Context}.
      */
+    @Deprecated
     protected File getWorkaroundLibFile(final Context context,
                                         final String library,
                                         final String version) {
+        return workaroundLibFile(new AndroidPlatform(context), library, version);
+    }
+
+    private File workaroundLibFile(final ReLinker.Platform platform,
+                                   final String library,
+                                   final String version) {
         final String libName = libraryLoader.mapLibraryName(library);
 
         if (TextUtils.isEmpty(version)) {
-            return new File(getWorkaroundLibDir(context), libName);
+            return new File(getWorkaroundLibDir(platform), libName);
         }
 
-        return new File(getWorkaroundLibDir(context), libName + "." + version);
+        return new File(getWorkaroundLibDir(platform), libName + "." + version);
+    }
+
+    /**
+     * Cleans up any <em>other</em> versions of the {@code library}. If {@code force} is used, all
+     * versions of the {@code library} are deleted. Unlike the cleanup that follows every load,
+     * this lists the workaround directory, so it also finds files missing from the manifest.
+     *
+     * @param platform {@link ReLinker.Platform} to retrieve the workaround directory from
+     * @param library The name of the library to load
+     * @param currentVersion The version of the library to keep, all other versions will be deleted.
+     *                       This parameter is ignored if {@code force} is used.
+     */
+    protected void cleanupOldLibFiles(final ReLinker.Platform platform,
+                                      final String library,
+                                      final String currentVersion) {
+        final Context context = contextOf(platform);
+        if (context != null) {
+            cleanupOldLibFiles(context, library, currentVersion);
+            return;
+        }
+
+        deleteVersions(platform, library, getWorkaroundLibFile(platform, library, currentVersion),
+                force);
     }
 
     /**
@@ -243,31 +1028,140 @@ public class ReLinkerInstance {
      * @param library The name of the library to load
      * @param currentVersion The version of the library to keep, all other versions will be deleted.
      *                       This parameter is ignored if {@code force} is used.
+     * @deprecated Override {@link #cleanupOldLibFiles(ReLinker.Platform, String, String)}
+     * instead. This is only called for loads given a {@link Context}.
      */
+    @Deprecated
     protected void cleanupOldLibFiles(final Context context,
                                       final String library,
                                       final String currentVersion) {
-        final File workaroundDir = getWorkaroundLibDir(context);
-        final File workaroundFile = getWorkaroundLibFile(context, library, currentVersion);
+        final ReLinker.Platform platform = new AndroidPlatform(context);
+        deleteVersions(platform, library, getWorkaroundLibFile(platform, library, currentVersion),
+                force);
+    }
+
+    /**
+     * Lists the workaround directory and deletes the files of every version of {@code library}
+     * but {@code keep}, or of every version including {@code keep} when {@code all} is set
+     */
+    private void deleteVersions(final ReLinker.Platform platform,
+                                final String library,
+                                final File keep,
+                                final boolean all) {
+        final File workaroundDir = getWorkaroundLibDir(platform);
         final String mappedLibraryName = libraryLoader.mapLibraryName(library);
         final File[] existingFiles = workaroundDir.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String filename) {
-                return filename.startsWith(mappedLibraryName);
+                // Either the unversioned file or a versioned one, but not e.g. libfoo.so_extra
+                return filename.equals(mappedLibraryName)
+                        || filename.startsWith(mappedLibraryName + ".");
             }
         });
 
         if (existingFiles == null) return;
 
         for (final File file : existingFiles) {
-            if (force || !file.getAbsolutePath().equals(workaroundFile.getAbsolutePath())) {
-                file.delete();
+            if (all || !file.getAbsolutePath().equals(keep.getAbsolutePath())) {
+                deleteLibraryFile(platform, file);
             }
         }
     }
 
+    /**
+     * Deletes an extracted library along with everything ReLinker recorded about it
+     */
+    private void deleteLibraryFile(final ReLinker.Platform platform, final File file) {
+        file.delete();
+        LibraryMetadata.delete(file);
+        getDependencyCache(platform).remove(file, getExecutor());
+        getLibraryManifest(platform).remove(file, getExecutor());
+    }
+
+    /**
+     * Reports that {@code library} spent the time since {@code startNanos} in {@code phase}
+     */
+    private void measure(final String library,
+                         final ReLinker.Phase phase,
+                         final long startNanos) {
+        if (metricsListener != null) {
+            metricsListener.onPhase(library, phase, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * The same as {@link #measure(String, ReLinker.Phase, long)}, for the installer which only
+     * knows the mapped name of the library
+     */
+    void measureInstall(final String mappedLibraryName,
+                        final ReLinker.Phase phase,
+                        final long startNanos) {
+        if (metricsListener != null) {
+            metricsListener.onPhase(libraryLoader.unmapLibraryName(mappedLibraryName), phase,
+                    System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Reports that {@code bytes} of a library were extracted since {@code startNanos}
+     */
+    void measureExtraction(final String mappedLibraryName,
+                           final long bytes,
+                           final long startNanos) {
+        if (metricsListener != null) {
+            metricsListener.onExtracted(libraryLoader.unmapLibraryName(mappedLibraryName), bytes,
+                    System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Reports how {@code result} was loaded, {@code startNanos} being when its load began
+     *
+     * @return {@code result}
+     */
+    private LoadResult loaded(final LoadResult result, final long startNanos) {
+        if (metricsListener != null && result != null) {
+            final ReLinker.Source source;
+            if (!result.relinked) {
+                source = ReLinker.Source.SYSTEM;
+            } else if (result.path.contains("!/")) {
+                source = ReLinker.Source.APK;
+            } else {
+                source = ReLinker.Source.EXTRACTED;
+            }
+            metricsListener.onLoaded(result.library, source, System.nanoTime() - startNanos);
+        }
+        return result;
+    }
+
+    /**
+     * Formats and logs a message, unless there is no {@link ReLinker.Logger} to log it to. Unlike
+     * {@link #log(String, Object...)}, calling this allocates nothing when there is no logger.
+     */
+    void log(final String format, final Object arg) {
+        if (logger != null) {
+            log(String.format(Locale.US, format, arg));
+        }
+    }
+
+    /**
+     * Formats and logs a message, unless there is no {@link ReLinker.Logger} to log it to. Unlike
+     * {@link #log(String, Object...)}, calling this allocates nothing when there is no logger.
+     */
+    void log(final String format, final Object first, final Object second) {
+        if (logger != null) {
+            log(String.format(Locale.US, format, first, second));
+        }
+    }
+
+    /**
+     * Formats and logs a message, unless there is no {@link ReLinker.Logger} to log it to. The
+     * arguments are always put in an array, so hot paths should check for a logger first.
+     */
     public void log(final String format, final Object... args) {
-        log(String.format(Locale.US, format, args));
+        if (logger != null) {
+            log(String.format(Locale.US, format, args));
+        }
     }
 
     public void log(final String message) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+/**
+ * Decides whether a failed IO operation of the {@link ApkLibraryInstaller} is worth retrying,
+ * and how long to wait before doing so. Delays grow exponentially with some random jitter, and
+ * errors that retrying cannot fix, such as a full disk or a corrupt APK, fail right away. Files
+ * that can't be opened are retried: on Android, running out of file descriptors or a busy file
+ * are reported the same way as a missing one.
+ */
+public final class RetryPolicy {
+    /** 5 attempts, waiting 10 ms before the first retry and at most 200 ms before any */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 10, 200);
+    /** A single attempt, failures are never retried */
+    public static final RetryPolicy NO_RETRIES = new RetryPolicy(1, 0, 0);
+
+    // The errno names libcore puts in the messages of the exceptions it throws
+    private static final String[] PERMANENT_ERRORS = {"ENOSPC", "EDQUOT", "EROFS"};
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts The number of attempts, including the first one
+     * @param initialDelayMillis The delay before the first retry, doubled for every later one
+     * @param maxDelayMillis The longest delay before any retry
+     */
+    public RetryPolicy(final int maxAttempts,
+                       final long initialDelayMillis,
+                       final long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("There must be at least one attempt");
+        }
+
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Called after attempt number {@code attempt} (starting at 1) failed with {@code error}.
+     * Waits before returning {@code true} if the operation should be attempted again.
+     */
+    boolean retry(final int attempt, final IOException error) {
+        if (attempt >= maxAttempts || isPermanent(error)) {
+            return false;
+        }
+
+        final long delay = delayBefore(attempt + 1);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return How long to wait before attempt number {@code attempt}: the exponential delay,
+     * minus a random amount of up to half of it
+     */
+    long delayBefore(final int attempt) {
+        if (attempt <= 1 || initialDelayMillis == 0) {
+            return 0;
+        }
+
+        final int doublings = Math.min(attempt - 2, 30);
+        final long delay = Math.min(maxDelayMillis, initialDelayMillis << doublings);
+        final long jitter;
+        synchronized (random) {
+            jitter = (long) (random.nextDouble() * (delay / 2));
+        }
+        return delay - jitter;
+    }
+
+    /**
+     * @return {@code true} if retrying cannot fix {@code error}: a corrupt archive, or a file
+     * system that is full or read only
+     */
+    static boolean isPermanent(final IOException error) {
+        if (error instanceof ZipException) {
+            return true;
+        }
+
+        final String message = error.getMessage();
+        if (message == null) {
+            return false;
+        }
+
+        for (final String permanentError : PERMANENT_ERRORS) {
+            if (message.contains(permanentError)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
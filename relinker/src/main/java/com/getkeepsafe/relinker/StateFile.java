@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads and writes the small versioned files ReLinker keeps in the workaround directory. Every
+ * one of them only saves work, so a file that is missing, corrupt or of another format version
+ * reads as empty and a failed write leaves the previous file in place.
+ */
+final class StateFile {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    interface Reader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private StateFile() {}
+
+    /**
+     * @return {@code true} if {@code file} exists, has {@code formatVersion} and was read to the
+     * end by {@code reader}
+     */
+    static boolean read(final File file, final int formatVersion, final Reader reader) {
+        if (!file.exists()) return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != formatVersion) {
+                return false;
+            }
+
+            reader.read(in);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeSilently(in);
+        }
+    }
+
+    /**
+     * Replaces {@code file} through a rename of a synced temporary file, so that a reader sees
+     * either the previous contents or the new ones, even after a crash.
+     *
+     * @return {@code true} if {@code file} now holds what {@code writer} wrote
+     */
+    static boolean write(final File file, final int formatVersion, final Writer writer) {
+        final File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        FileOutputStream fileOut = null;
+        boolean written = false;
+        try {
+            fileOut = new FileOutputStream(temp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(formatVersion);
+            writer.write(out);
+            out.flush();
+            fileOut.getFD().sync();
+            written = true;
+        } catch (IOException ignored) {
+            // Handled below
+        } finally {
+            closeSilently(fileOut);
+        }
+
+        if (written && temp.renameTo(file)) {
+            return true;
+        }
+
+        temp.delete();
+        return false;
+    }
+
+    static void closeSilently(final Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Saves a file on the executor of the {@link ReLinkerInstance} that changed it instead of the
+     * loading thread. Every change requested before the save gets to run is written at once.
+     */
+    abstract static class DeferredSave implements Runnable {
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void schedule(final Executor executor) {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Saved along with the next change instead
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            save();
+        }
+
+        abstract void save();
+    }
+
+    /**
+     * One {@code T} per workaround directory, shared by the whole process
+     */
+    abstract static class PerDirectory<T> {
+        private final Map<String, T> instances = new HashMap<String, T>();
+
+        synchronized T get(final File directory) {
+            final String key = directory.getAbsolutePath();
+            T instance = instances.get(key);
+            if (instance == null) {
+                instance = create(directory);
+                instances.put(key, instance);
+            }
+            return instance;
+        }
+
+        abstract T create(File directory);
+    }
+}
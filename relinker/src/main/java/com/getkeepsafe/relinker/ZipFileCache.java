@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+/**
+ * Process wide cache of open APKs, so that consecutive installs reuse the already parsed central
+ * directory instead of opening the APK again. Handles are reference counted and keyed by path and
+ * modification time; an APK that nobody uses is closed after a short idle period.
+ */
+final class ZipFileCache {
+    static final long IDLE_TIMEOUT_MS = 5000;
+
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private static ScheduledThreadPoolExecutor evictionExecutor;
+
+    private ZipFileCache() {}
+
+    /**
+     * Opens the APK at {@code file}, or shares the handle already open for it. The handle must
+     * be {@link Handle#close() closed} when done with it.
+     */
+    static Handle acquire(final File file) throws IOException {
+        final String path = file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+
+        synchronized (entries) {
+            final Entry entry = entries.get(path);
+            if (entry != null) {
+                if (entry.lastModified == lastModified) {
+                    ++entry.references;
+                    return new Handle(entry);
+                }
+
+                // The APK was replaced, stop handing out the old one
+                entries.remove(path);
+                entry.stale = true;
+                if (entry.references == 0) {
+                    closeQuietly(entry.zipFile);
+                }
+            }
+        }
+
+        final ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+        synchronized (entries) {
+            final Entry existing = entries.get(path);
+            if (existing != null && existing.lastModified == lastModified) {
+                // Another thread opened it in the meantime
+                closeQuietly(zipFile);
+                ++existing.references;
+                return new Handle(existing);
+            }
+
+            final Entry entry = new Entry(zipFile, lastModified);
+            entry.references = 1;
+            entries.put(path, entry);
+            return new Handle(entry);
+        }
+    }
+
+    /**
+     * Closes every APK that has been unused for at least {@code idleMillis}
+     */
+    static void evictIdle(final long idleMillis) {
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.references == 0 && now - entry.idleSince >= idleMillis) {
+                    iterator.remove();
+                    closeQuietly(entry.zipFile);
+                }
+            }
+        }
+    }
+
+    private static void release(final Entry entry) {
+        synchronized (entries) {
+            if (--entry.references > 0) {
+                return;
+            }
+
+            if (entry.stale) {
+                closeQuietly(entry.zipFile);
+                return;
+            }
+
+            entry.idleSince = System.currentTimeMillis();
+            evictionExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle(IDLE_TIMEOUT_MS);
+                }
+            }, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The executor running evictions. Its thread exits once there is nothing left to
+     * evict, so the cache costs no thread when it is empty.
+     */
+    private static ScheduledThreadPoolExecutor evictionExecutor() {
+        if (evictionExecutor == null) {
+            evictionExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ReLinker-ZipFileCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            evictionExecutor.setKeepAliveTime(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            evictionExecutor.allowCoreThreadTimeOut(true);
+        }
+        return evictionExecutor;
+    }
+
+    private static void closeQuietly(final ZipFile zipFile) {
+        try {
+            zipFile.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static final class Entry {
+        final ZipFile zipFile;
+        final long lastModified;
+        int references;
+        long idleSince;
+        boolean stale;
+
+        Entry(final ZipFile zipFile, final long lastModified) {
+            this.zipFile = zipFile;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A reference to an open APK. Closing the handle releases the reference, not the APK.
+     */
+    static final class Handle implements Closeable {
+        final ZipFile zipFile;
+        private final Entry entry;
+        private boolean closed;
+
+        private Handle(final Entry entry) {
+            this.entry = entry;
+            this.zipFile = entry.zipFile;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+}
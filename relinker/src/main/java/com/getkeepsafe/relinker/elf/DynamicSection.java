@@ -0,0 +1,75 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker.elf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The entries of a dynamic segment that are needed to resolve dependencies, collected by scanning
+ * the segment in place after reading it in one go.
+ */
+public final class DynamicSection {
+    public final long[] neededOffsets; // Offsets of DT_NEEDED names into the string table
+    public final long stringTableAddress; // DT_STRTAB, a virtual address
+    public final long stringTableSize; // DT_STRSZ, or 0 if absent
+
+    private DynamicSection(final long[] neededOffsets, final long stringTableAddress,
+                           final long stringTableSize) {
+        this.neededOffsets = neededOffsets;
+        this.stringTableAddress = stringTableAddress;
+        this.stringTableSize = stringTableSize;
+    }
+
+    /**
+     * @param section The dynamic segment, indexed from 0
+     * @param entrySize 8 for ELFCLASS32 (two words), 16 for ELFCLASS64 (two longs)
+     */
+    static DynamicSection scan(final ByteBuffer section, final int entrySize) {
+        final int half = entrySize / 2;
+        long[] needed = new long[8];
+        int neededCount = 0;
+        long stringTableAddress = 0;
+        long stringTableSize = 0;
+
+        for (int base = 0; base + entrySize <= section.limit(); base += entrySize) {
+            final long tag = read(section, base, half);
+            if (tag == Elf.DynamicStructure.DT_NULL) {
+                break;
+            }
+
+            if (tag == Elf.DynamicStructure.DT_NEEDED) {
+                if (neededCount == needed.length) {
+                    final long[] grown = new long[needed.length * 2];
+                    System.arraycopy(needed, 0, grown, 0, neededCount);
+                    needed = grown;
+                }
+                needed[neededCount++] = read(section, base + half, half);
+            } else if (tag == Elf.DynamicStructure.DT_STRTAB) {
+                stringTableAddress = read(section, base + half, half); // d_ptr union
+            } else if (tag == Elf.DynamicStructure.DT_STRSZ) {
+                stringTableSize = read(section, base + half, half);
+            }
+        }
+
+        final long[] neededOffsets = new long[neededCount];
+        System.arraycopy(needed, 0, neededOffsets, 0, neededCount);
+        return new DynamicSection(neededOffsets, stringTableAddress, stringTableSize);
+    }
+
+    private static long read(final ByteBuffer section, final int index, final int size) {
+        return size == 8 ? section.getLong(index) : section.getInt(index) & 0xFFFFFFFFL;
+    }
+}
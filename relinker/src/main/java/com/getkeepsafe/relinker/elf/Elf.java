@@ -35,8 +35,11 @@ public interface Elf {
 
         abstract public Elf.SectionHeader getSectionHeader(int index) throws IOException;
         abstract public Elf.ProgramHeader getProgramHeader(long index) throws IOException;
+        abstract public ProgramHeaderTable getProgramHeaderTable(long count) throws IOException;
         abstract public Elf.DynamicStructure getDynamicStructure(long baseOffset, int index)
                 throws IOException;
+        abstract public DynamicSection getDynamicSection(long offset, long size)
+                throws IOException;
     }
 
     abstract class ProgramHeader {
@@ -46,6 +49,7 @@ public interface Elf {
         public long type;
         public long offset;
         public long vaddr;
+        public long filesz;
         public long memsz;
     }
 
@@ -57,6 +61,7 @@ public interface Elf {
         public static final int DT_NULL = 0; // Marks end of structure list
         public static final int DT_NEEDED = 1; // Needed library
         public static final int DT_STRTAB = 5; // String table
+        public static final int DT_STRSZ = 10; // Size of the string table
 
         public long tag;
         public long val; // Union with d_ptr
@@ -49,9 +49,35 @@ public class Elf32Header extends Elf.Header {
         return new Program32Header(parser, this, index);
     }
 
+    @Override
+    public ProgramHeaderTable getProgramHeaderTable(final long count) throws IOException {
+        if (phentsize < 0x20) {
+            throw new IllegalStateException("Invalid program header size!");
+        }
+
+        final ByteBuffer table = parser.readTable(this, phoff, count, phentsize);
+        final ProgramHeaderTable programHeaders = new ProgramHeaderTable((int) count);
+        for (int i = 0; i < programHeaders.count; ++i) {
+            final int base = i * phentsize;
+            programHeaders.type[i] = table.getInt(base) & 0xFFFFFFFFL;
+            programHeaders.offset[i] = table.getInt(base + 0x4) & 0xFFFFFFFFL;
+            programHeaders.vaddr[i] = table.getInt(base + 0x8) & 0xFFFFFFFFL;
+            programHeaders.filesz[i] = table.getInt(base + 0x10) & 0xFFFFFFFFL;
+            programHeaders.memsz[i] = table.getInt(base + 0x14) & 0xFFFFFFFFL;
+        }
+
+        return programHeaders;
+    }
+
     @Override
     public Elf.DynamicStructure getDynamicStructure(final long baseOffset, final int index)
             throws IOException {
         return new Dynamic32Structure(parser, this, baseOffset, index);
     }
+
+    @Override
+    public DynamicSection getDynamicSection(final long offset, final long size)
+            throws IOException {
+        return DynamicSection.scan(parser.readTable(this, offset, size / 8, 8), 8);
+    }
 }
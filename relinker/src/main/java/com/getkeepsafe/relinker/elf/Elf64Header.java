@@ -49,9 +49,35 @@ public class Elf64Header extends Elf.Header {
         return new Program64Header(parser, this, index);
     }
 
+    @Override
+    public ProgramHeaderTable getProgramHeaderTable(final long count) throws IOException {
+        if (phentsize < 0x38) {
+            throw new IllegalStateException("Invalid program header size!");
+        }
+
+        final ByteBuffer table = parser.readTable(this, phoff, count, phentsize);
+        final ProgramHeaderTable programHeaders = new ProgramHeaderTable((int) count);
+        for (int i = 0; i < programHeaders.count; ++i) {
+            final int base = i * phentsize;
+            programHeaders.type[i] = table.getInt(base) & 0xFFFFFFFFL;
+            programHeaders.offset[i] = table.getLong(base + 0x8);
+            programHeaders.vaddr[i] = table.getLong(base + 0x10);
+            programHeaders.filesz[i] = table.getLong(base + 0x20);
+            programHeaders.memsz[i] = table.getLong(base + 0x28);
+        }
+
+        return programHeaders;
+    }
+
     @Override
     public Elf.DynamicStructure getDynamicStructure(final long baseOffset, final int index)
             throws IOException {
         return new Dynamic64Structure(parser, this, baseOffset, index);
     }
+
+    @Override
+    public DynamicSection getDynamicSection(final long offset, final long size)
+            throws IOException {
+        return DynamicSection.scan(parser.readTable(this, offset, size / 16, 16), 16);
+    }
 }
@@ -15,6 +15,7 @@
  */
 package com.getkeepsafe.relinker.elf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
@@ -24,11 +25,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public class ElfParser implements Closeable, Elf {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private final int MAGIC = 0x464C457F;
     private final FileChannel channel;
 
@@ -84,61 +87,42 @@ public class ElfParser implements Closeable, Elf {
             numProgramHeaderEntries = sectionHeader.info;
         }
 
-        long dynamicSectionOff = 0;
-        for (long i = 0; i < numProgramHeaderEntries; ++i) {
-            final Elf.ProgramHeader programHeader = header.getProgramHeader(i);
-            if (programHeader.type == ProgramHeader.PT_DYNAMIC) {
-                dynamicSectionOff = programHeader.offset;
-                break;
-            }
-        }
+        final ProgramHeaderTable programHeaders =
+                header.getProgramHeaderTable(numProgramHeaderEntries);
 
-        if (dynamicSectionOff == 0) {
+        final int dynamicIndex = programHeaders.indexOf(ProgramHeader.PT_DYNAMIC);
+        if (dynamicIndex == -1 || programHeaders.offset[dynamicIndex] == 0) {
             // No dynamic linking info, nothing to load
             return Collections.unmodifiableList(dependencies);
         }
 
-        int i = 0;
-        final List<Long> neededOffsets = new ArrayList<Long>();
-        long vStringTableOff = 0;
-        Elf.DynamicStructure dynStructure;
-        do {
-            dynStructure = header.getDynamicStructure(dynamicSectionOff, i);
-            if (dynStructure.tag == DynamicStructure.DT_NEEDED) {
-                neededOffsets.add(dynStructure.val);
-            } else if (dynStructure.tag == DynamicStructure.DT_STRTAB) {
-                vStringTableOff = dynStructure.val; // d_ptr union
-            }
-            ++i;
-        } while (dynStructure.tag != DynamicStructure.DT_NULL);
-
-        if (vStringTableOff == 0) {
+        final DynamicSection dynamicSection = header.getDynamicSection(
+                programHeaders.offset[dynamicIndex], programHeaders.filesz[dynamicIndex]);
+        if (dynamicSection.stringTableAddress == 0) {
             throw new IllegalStateException("String table offset not found!");
         }
 
         // Map to file offset
-        final long stringTableOff = offsetFromVma(header, numProgramHeaderEntries, vStringTableOff);
-        for (final Long strOff : neededOffsets) {
-            dependencies.add(readString(buffer, stringTableOff + strOff));
-        }
-
-        return dependencies;
-    }
-
-    private long offsetFromVma(final Elf.Header header, final long numEntries, final long vma)
-            throws IOException {
-        for (long i = 0; i < numEntries; ++i) {
-            final Elf.ProgramHeader programHeader = header.getProgramHeader(i);
-            if (programHeader.type == ProgramHeader.PT_LOAD) {
-                // Within memsz instead of filesz to be more tolerant
-                if (programHeader.vaddr <= vma
-                        && vma <= programHeader.vaddr + programHeader.memsz) {
-                    return vma - programHeader.vaddr + programHeader.offset;
+        final long stringTableOff =
+                programHeaders.offsetFromVma(dynamicSection.stringTableAddress);
+        final long stringTableSize = dynamicSection.stringTableSize;
+        if (stringTableSize > 0 && stringTableSize <= Integer.MAX_VALUE) {
+            // Read the whole string table once and slice the names out of it
+            final ByteBuffer stringTable =
+                    readBytes(stringTableOff, (int) stringTableSize, buffer.order());
+            for (final long strOff : dynamicSection.neededOffsets) {
+                if (strOff >= stringTableSize) {
+                    throw new IllegalStateException("String offset out of bounds!");
                 }
+                dependencies.add(sliceString(stringTable, (int) strOff));
+            }
+        } else {
+            for (final long strOff : dynamicSection.neededOffsets) {
+                dependencies.add(readString(buffer, stringTableOff + strOff));
             }
         }
 
-        throw new IllegalStateException("Could not map vma to file offset!");
+        return dependencies;
     }
 
     @Override
@@ -147,13 +131,34 @@ public class ElfParser implements Closeable, Elf {
     }
 
     protected String readString(final ByteBuffer buffer, long offset) throws IOException {
-        final StringBuilder builder = new StringBuilder();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         short c;
         while ((c = readByte(buffer, offset++)) != 0) {
-            builder.append((char) c);
+            bytes.write(c);
         }
 
-        return builder.toString();
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Decodes the NUL terminated UTF-8 string starting at {@code start} in {@code table}. A
+     * string missing its terminator ends at the end of the table.
+     */
+    private static String sliceString(final ByteBuffer table, final int start) {
+        int end = start;
+        while (end < table.limit() && table.get(end) != 0) {
+            ++end;
+        }
+
+        if (table.hasArray()) {
+            return new String(table.array(), table.arrayOffset() + start, end - start, UTF_8);
+        }
+
+        final byte[] bytes = new byte[end - start];
+        final ByteBuffer slice = table.duplicate();
+        slice.position(start);
+        slice.get(bytes);
+        return new String(bytes, UTF_8);
     }
 
     protected long readLong(final ByteBuffer buffer, final long offset) throws IOException {
@@ -176,6 +181,37 @@ public class ElfParser implements Closeable, Elf {
         return (short) (buffer.get() & 0xFF);
     }
 
+    /**
+     * Reads a table of {@code count} entries of {@code entrySize} bytes each with a single read.
+     */
+    protected ByteBuffer readTable(final Elf.Header header, final long offset, final long count,
+                                   final int entrySize) throws IOException {
+        final long length = count * entrySize;
+        if (count < 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Invalid table size!");
+        }
+
+        return readBytes(offset, (int) length,
+                header.bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset} into a buffer of the given byte
+     * order, indexed from 0. Ranges that do not lie within the file are rejected before anything
+     * is allocated, so a corrupt size can't exhaust the heap.
+     */
+    protected ByteBuffer readBytes(final long offset, final int length, final ByteOrder order)
+            throws IOException {
+        if (offset < 0 || length < 0 || offset + length > channel.size()) {
+            throw new IllegalStateException("Read out of bounds!");
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(order);
+        read(buffer, offset, length);
+        return buffer;
+    }
+
     protected void read(final ByteBuffer buffer, long offset, final int length) throws IOException {
         buffer.position(0);
         buffer.limit(length);
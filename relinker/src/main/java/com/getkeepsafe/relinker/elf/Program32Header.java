@@ -29,6 +29,7 @@ public class Program32Header extends Elf.ProgramHeader {
         type = parser.readWord(buffer, baseOffset);
         offset = parser.readWord(buffer, baseOffset + 0x4);
         vaddr = parser.readWord(buffer, baseOffset + 0x8);
+        filesz = parser.readWord(buffer, baseOffset + 0x10);
         memsz = parser.readWord(buffer, baseOffset + 0x14);
     }
 }
@@ -29,6 +29,7 @@ public class Program64Header extends Elf.ProgramHeader {
         type = parser.readWord(buffer, baseOffset);
         offset = parser.readLong(buffer, baseOffset + 0x8);
         vaddr = parser.readLong(buffer, baseOffset + 0x10);
+        filesz = parser.readLong(buffer, baseOffset + 0x20);
         memsz = parser.readLong(buffer, baseOffset + 0x28);
     }
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker.elf;
+
+/**
+ * The whole program header table of an ELF file, decoded from a single read. Entry {@code i} of
+ * the table is described by the {@code i}th element of each array.
+ */
+public final class ProgramHeaderTable {
+    public final int count;
+    public final long[] type;
+    public final long[] offset;
+    public final long[] vaddr;
+    public final long[] filesz;
+    public final long[] memsz;
+
+    public ProgramHeaderTable(final int count) {
+        this.count = count;
+        this.type = new long[count];
+        this.offset = new long[count];
+        this.vaddr = new long[count];
+        this.filesz = new long[count];
+        this.memsz = new long[count];
+    }
+
+    /**
+     * @return The index of the first entry of the given {@code type}, or -1 if there is none
+     */
+    public int indexOf(final long type) {
+        for (int i = 0; i < count; ++i) {
+            if (this.type[i] == type) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Maps a virtual memory address to its offset in the file using the loadable segments.
+     *
+     * @throws IllegalStateException if no loadable segment contains {@code vma}
+     */
+    public long offsetFromVma(final long vma) {
+        for (int i = 0; i < count; ++i) {
+            if (type[i] == Elf.ProgramHeader.PT_LOAD) {
+                // Within memsz instead of filesz to be more tolerant
+                if (vaddr[i] <= vma && vma <= vaddr[i] + memsz[i]) {
+                    return vma - vaddr[i] + offset[i];
+                }
+            }
+        }
+
+        throw new IllegalStateException("Could not map vma to file offset!");
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M)
+public class AndroidPlatformTest {
+    @Mock
+    Context context;
+    @Mock
+    ApplicationInfo applicationInfo;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(context.getApplicationInfo()).thenReturn(applicationInfo);
+    }
+
+    @Test
+    public void getsWorkaroundDirectoryFromContext() {
+        final File libDir = new File("/data/data/com.example/app_lib");
+        when(context.getDir("lib", Context.MODE_PRIVATE)).thenReturn(libDir);
+
+        assertThat(new AndroidPlatform(context).workaroundLibDir(), is(libDir));
+    }
+
+    @Test
+    public void listsBaseApkWithoutSplits() {
+        applicationInfo.sourceDir = "/data/app/base.apk";
+        applicationInfo.splitSourceDirs = null;
+
+        assertThat(new AndroidPlatform(context).sourceApks(),
+                is(new String[] {"/data/app/base.apk"}));
+    }
+
+    @Test
+    public void listsBaseApkBeforeSplits() {
+        applicationInfo.sourceDir = "/data/app/base.apk";
+        applicationInfo.splitSourceDirs = new String[] {"/data/app/split_config.x86.apk"};
+
+        assertThat(new AndroidPlatform(context).sourceApks(),
+                is(new String[] {"/data/app/base.apk", "/data/app/split_config.x86.apk"}));
+    }
+
+    @Test
+    public void loadsFromApkOnMarshmallow() {
+        assertThat(new AndroidPlatform(context).canLoadFromApk(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNullContext() {
+        new AndroidPlatform(null);
+    }
+}
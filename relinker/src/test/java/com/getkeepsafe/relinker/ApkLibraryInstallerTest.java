@@ -15,9 +15,6 @@
  */
 package com.getkeepsafe.relinker;
 
-import android.content.Context;
-import android.content.pm.ApplicationInfo;
-
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -26,11 +23,24 @@ import org.junit.rules.TemporaryFolder;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -46,41 +56,298 @@ public class ApkLibraryInstallerTest {
 
     @Test
     public void installsCorrectly() throws IOException {
-        final Context context = mock(Context.class);
-        final ApplicationInfo appInfo = mock(ApplicationInfo.class);
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
         final ReLinkerInstance instance = mock(ReLinkerInstance.class);
         final ApkLibraryInstaller installer = new ApkLibraryInstaller();
         final File destination = tempFolder.newFile("test");
         final String[] abis = new String[] {"x86"};
 
-        when(context.getApplicationInfo()).thenReturn(appInfo);
-        appInfo.sourceDir = getClass().getResource("/fake.apk").getFile();
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
 
-        installer.installLibrary(context, abis, "libtest.so", destination, instance);
-        verify(context).getApplicationInfo();
+        installer.installLibrary(platform, abis, "libtest.so", destination, instance);
+        verify(platform).sourceApks();
+        verify(instance).measureInstall(eq("libtest.so"), eq(ReLinker.Phase.APK_LOOKUP),
+                anyLong());
+        verify(instance).measureExtraction(eq("libtest.so"), eq(destination.length()),
+                anyLong());
         assertThat(fileToString(destination), is("works!"));
     }
 
     @Test
     public void throwsMissingLibraryExceptionWhenABIIsMissing() throws IOException {
-        final Context context = mock(Context.class);
-        final ApplicationInfo appInfo = mock(ApplicationInfo.class);
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
         final ReLinkerInstance instance = mock(ReLinkerInstance.class);
         final ApkLibraryInstaller installer = new ApkLibraryInstaller();
         final File destination = tempFolder.newFile("test");
         final String[] abis = new String[] {"armeabi-v7a"}; // For unit test running on a developer machine this is normally x86
 
-        when(context.getApplicationInfo()).thenReturn(appInfo);
-        appInfo.sourceDir = getClass().getResource("/fake.apk").getFile();
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
 
         try {
-            installer.installLibrary(context, abis, "libtest.so", destination, instance);
+            installer.installLibrary(platform, abis, "libtest.so", destination, instance);
         } catch (MissingLibraryException e) {
             assertEquals("Could not find 'libtest.so'. Looked for: [armeabi-v7a], but only found: [x86].", e.getMessage());
         }
     }
 
+    @Test
+    public void installsSeveralLibrariesCorrectly() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File[] destinations = new File[] {tempFolder.newFile("a"), tempFolder.newFile("b")};
+        final String[] abis = new String[] {"armeabi-v7a", "x86"};
+
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
+
+        installer.installLibraries(platform, abis, new String[] {"libtest.so", "libtest.so"},
+                destinations, instance);
+        assertThat(fileToString(destinations[0]), is("works!"));
+        assertThat(fileToString(destinations[1]), is("works!"));
+    }
+
+    @Test
+    public void extractsSeveralLibrariesConcurrently() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File[] destinations = new File[] {tempFolder.newFile("a"), tempFolder.newFile("b"),
+                tempFolder.newFile("c")};
+        final AtomicInteger helpers = new AtomicInteger();
+
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
+        when(instance.getExtractionParallelism()).thenReturn(2);
+        when(instance.getExecutor()).thenReturn(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                helpers.incrementAndGet();
+                new Thread(command).start();
+            }
+        });
+
+        installer.installLibraries(platform, new String[] {"x86"},
+                new String[] {"libtest.so", "libtest.so", "libtest.so"}, destinations, instance);
+        assertThat(helpers.get(), is(1));
+        for (final File destination : destinations) {
+            assertThat(fileToString(destination), is("works!"));
+        }
+    }
+
+    @Test
+    public void throwsMissingLibraryExceptionWhenOneOfSeveralLibrariesIsMissing()
+            throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File[] destinations = new File[] {tempFolder.newFile("a"), tempFolder.newFile("b")};
+        final String[] abis = new String[] {"x86"};
+
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
+
+        try {
+            installer.installLibraries(platform, abis, new String[] {"libtest.so", "libother.so"},
+                    destinations, instance);
+            fail();
+        } catch (MissingLibraryException e) {
+            assertEquals("Could not find 'libother.so'. Looked for: [x86], but only found: [].",
+                    e.getMessage());
+        }
+        assertThat(fileToString(destinations[0]), is("works!"));
+    }
+
+    @Test
+    public void installsStoredAndDeflatedLibrariesCorrectly() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File[] destinations = new File[] {tempFolder.newFile("a"), tempFolder.newFile("b")};
+
+        // Large enough to take several rounds through the copy buffers
+        final byte[] data = new byte[300 * 1024];
+        final Random random = new Random(42);
+        for (int i = 0; i < data.length; i += 64) {
+            Arrays.fill(data, i, i + 64, (byte) random.nextInt(4));
+        }
+
+        final File apk = tempFolder.newFile("mixed.apk");
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            final ZipEntry stored = new ZipEntry("lib/x86/libstored.so");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(data.length);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(data);
+            out.closeEntry();
+
+            out.putNextEntry(new ZipEntry("lib/x86/libdeflated.so"));
+            out.write(data);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+
+        when(platform.sourceApks()).thenReturn(new String[] {apk.getAbsolutePath()});
+
+        installer.installLibraries(platform, new String[] {"x86"},
+                new String[] {"libstored.so", "libdeflated.so"}, destinations, instance);
+        assertThat(fileToBytes(destinations[0]), is(data));
+        assertThat(fileToBytes(destinations[1]), is(data));
+        verify(instance).measureExtraction(eq("libstored.so"), eq((long) data.length),
+                anyLong());
+        verify(instance).measureExtraction(eq("libdeflated.so"), eq((long) data.length),
+                anyLong());
+    }
+
+    @Test
+    public void doesNotInstallCorruptLibrary() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File destination = new File(tempFolder.getRoot(), "corrupt");
+        final File apk = writeAlignedApk("corrupt.apk", "lib/x86/libtest.so");
+
+        // Flip the first byte of the library's data, which starts on the first page boundary
+        final RandomAccessFile file = new RandomAccessFile(apk, "rw");
+        try {
+            file.seek(4096);
+            final int first = file.read();
+            file.seek(4096);
+            file.write(first ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        when(platform.sourceApks()).thenReturn(new String[] {apk.getAbsolutePath()});
+
+        installer.installLibrary(platform, new String[] {"x86"}, "libtest.so", destination,
+                instance);
+        assertThat(destination.exists(), is(false));
+        assertThat(tempFolder.getRoot().list(), is(new String[] {"corrupt.apk"}));
+    }
+
+    @Test
+    public void deletesStaleTempFiles() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File destination = new File(tempFolder.getRoot(), "test");
+        final File stale = tempFolder.newFile(".relinker-test-1.tmp");
+        final File recent = tempFolder.newFile(".relinker-test-2.tmp");
+        stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
+
+        installer.installLibrary(platform, new String[] {"x86"}, "libtest.so", destination,
+                instance);
+        assertThat(fileToString(destination), is("works!"));
+        assertThat(stale.exists(), is(false));
+        assertThat(recent.exists(), is(true));
+    }
+
+    @Test
+    public void detectsOutOfDateLibraries() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File destination = new File(tempFolder.getRoot(), "libtest.so");
+        final String[] abis = new String[] {"x86"};
+        final File apk = writeAlignedApk("app.apk", "lib/x86/libtest.so");
+
+        when(platform.sourceApks()).thenReturn(new String[] {apk.getAbsolutePath()});
+
+        installer.installLibrary(platform, abis, "libtest.so", destination, instance);
+        assertThat(installer.isInstalled(platform, abis, "libtest.so", destination, instance),
+                is(true));
+
+        // An app update with a different library of the same size
+        final long lastModified = apk.lastModified();
+        writeAlignedApk("app.apk", "lib/x86/libtest.so", "works?".getBytes());
+        assertThat(apk.setLastModified(lastModified + 10000), is(true));
+        assertThat(installer.isInstalled(platform, abis, "libtest.so", destination, instance),
+                is(false));
+
+        LibraryMetadata.delete(destination);
+        assertThat(installer.isInstalled(platform, abis, "libtest.so", destination, instance),
+                is(false));
+    }
+
+    @Test
+    public void findsPageAlignedLibraryInApk() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+        final File apk = writeAlignedApk("aligned.apk", "lib/x86/libtest.so");
+
+        when(platform.sourceApks()).thenReturn(new String[] {apk.getAbsolutePath()});
+
+        assertThat(installer.findLibraryInApk(platform, new String[] {"x86"}, "libtest.so",
+                instance), is(apk.getAbsolutePath() + "!/lib/x86/libtest.so"));
+    }
+
+    @Test
+    public void extractsLibraryThatIsNotPageAligned() throws IOException {
+        final ReLinker.Platform platform = mock(ReLinker.Platform.class);
+        final ReLinkerInstance instance = mock(ReLinkerInstance.class);
+        final ApkLibraryInstaller installer = new ApkLibraryInstaller();
+
+        when(platform.sourceApks())
+                .thenReturn(new String[] {getClass().getResource("/fake.apk").getFile()});
+
+        assertThat(installer.findLibraryInApk(platform, new String[] {"x86"}, "libtest.so",
+                instance), is(nullValue()));
+    }
+
+    /**
+     * Writes an APK with a single uncompressed library, padded the way zipalign does so that its
+     * data starts on a page boundary
+     */
+    private File writeAlignedApk(final String name, final String entryName) throws IOException {
+        return writeAlignedApk(name, entryName, "works!".getBytes());
+    }
+
+    private File writeAlignedApk(final String name,
+                                 final String entryName,
+                                 final byte[] data) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        final ZipEntry entry = new ZipEntry(entryName);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCrc(crc.getValue());
+        final byte[] extra = new byte[4096 - 30 - entryName.length()];
+        extra[0] = (byte) 0x35;
+        extra[1] = (byte) 0xd9;
+        extra[2] = (byte) (extra.length - 4);
+        extra[3] = (byte) ((extra.length - 4) >> 8);
+        entry.setExtra(extra);
+
+        final File apk = new File(tempFolder.getRoot(), name);
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            out.putNextEntry(entry);
+            out.write(data);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
     private String fileToString(final File file) throws IOException {
+        return new String(fileToBytes(file));
+    }
+
+    private byte[] fileToBytes(final File file) throws IOException {
         final long size = file.length();
         if (size > Integer.MAX_VALUE) {
             throw new IOException("Can't read a file larger than Integer.MAX_VALUE");
@@ -98,7 +365,7 @@ public class ApkLibraryInstallerTest {
                 bytesRead += read;
             }
 
-            return new String(data);
+            return data;
         } finally {
             in.close();
         }
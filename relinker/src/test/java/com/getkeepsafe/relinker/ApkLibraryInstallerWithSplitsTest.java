@@ -57,7 +57,8 @@ public class ApkLibraryInstallerWithSplitsTest {
         applicationInfo.splitSourceDirs = null;
         when(context.getApplicationInfo()).thenReturn(applicationInfo);
 
-        subject.installLibrary(context, abis, "libtest.so", destination, instance);
+        subject.installLibrary(new AndroidPlatform(context), abis, "libtest.so", destination,
+                instance);
         verify(context).getApplicationInfo();
         assertThat(fileToString(destination), is("works!"));
     }
@@ -70,7 +71,8 @@ public class ApkLibraryInstallerWithSplitsTest {
         applicationInfo.splitSourceDirs = new String[]{};
         when(context.getApplicationInfo()).thenReturn(applicationInfo);
 
-        subject.installLibrary(context, abis, "libtest.so", destination, instance);
+        subject.installLibrary(new AndroidPlatform(context), abis, "libtest.so", destination,
+                instance);
         verify(context).getApplicationInfo();
         assertThat(fileToString(destination), is("works!"));
     }
@@ -84,7 +86,8 @@ public class ApkLibraryInstallerWithSplitsTest {
         applicationInfo.splitSourceDirs = new String[]{"/another/fake/path/nolib.apk", actualApk};
         when(context.getApplicationInfo()).thenReturn(applicationInfo);
 
-        subject.installLibrary(context, abis, "libtest.so", destination, instance);
+        subject.installLibrary(new AndroidPlatform(context), abis, "libtest.so", destination,
+                instance);
         verify(context).getApplicationInfo();
         assertThat(fileToString(destination), is("works!"));
     }
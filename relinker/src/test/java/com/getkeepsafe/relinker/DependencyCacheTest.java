@@ -0,0 +1,134 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class DependencyCacheTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final List<String> dependencies = Arrays.asList("libc.so", "libfoo.so");
+    private final Executor executor = SharedExecutor.get();
+
+    @Test
+    public void persistsDependencies() throws IOException {
+        final File library = writeFile("libmylib.so", 16);
+        final DependencyCache previousLaunch = new DependencyCache(tempFolder.getRoot());
+        previousLaunch.put(library, "1.0", dependencies, executor);
+        previousLaunch.flush();
+
+        final DependencyCache cache = new DependencyCache(tempFolder.getRoot());
+        assertThat(cache.get(library, "1.0"), is(dependencies));
+        assertThat(new File(tempFolder.getRoot(), DependencyCache.FILE_NAME).exists(), is(true));
+        assertThat(new File(tempFolder.getRoot(), DependencyCache.FILE_NAME + ".tmp").exists(),
+                is(false));
+    }
+
+    @Test
+    public void invalidatesChangedLibraries() throws IOException {
+        final File library = writeFile("libmylib.so", 16);
+        final DependencyCache cache = new DependencyCache(tempFolder.getRoot());
+        cache.put(library, null, dependencies, executor);
+        assertThat(cache.get(library, null), is(dependencies));
+        assertThat(cache.get(library, "2.0"), is(nullValue()));
+
+        writeFile("libmylib.so", 32);
+        assertThat(cache.get(library, null), is(nullValue()));
+    }
+
+    @Test
+    public void removesLibraries() throws IOException {
+        final File library = writeFile("libmylib.so", 16);
+        final DependencyCache first = new DependencyCache(tempFolder.getRoot());
+        first.put(library, null, dependencies, executor);
+        first.flush();
+        final DependencyCache second = new DependencyCache(tempFolder.getRoot());
+        second.remove(library, executor);
+        second.flush();
+
+        assertThat(new DependencyCache(tempFolder.getRoot()).get(library, null), is(nullValue()));
+    }
+
+    @Test
+    public void ignoresCorruptCache() throws IOException {
+        final File library = writeFile("libmylib.so", 16);
+        writeFile(DependencyCache.FILE_NAME, 3);
+
+        final DependencyCache cache = new DependencyCache(tempFolder.getRoot());
+        assertThat(cache.get(library, null), is(nullValue()));
+        cache.put(library, null, dependencies, executor);
+        cache.flush();
+        assertThat(new DependencyCache(tempFolder.getRoot()).get(library, null), is(dependencies));
+    }
+
+    @Test
+    public void savesChangesInTheBackground() throws Exception {
+        final File library = writeFile("libmylib.so", 16);
+        new DependencyCache(tempFolder.getRoot()).put(library, null, dependencies, executor);
+
+        final File file = new File(tempFolder.getRoot(), DependencyCache.FILE_NAME);
+        for (int i = 0; i < 100 && !file.exists(); ++i) {
+            Thread.sleep(50);
+        }
+        assertThat(new DependencyCache(tempFolder.getRoot()).get(library, null), is(dependencies));
+    }
+
+    @Test
+    public void savesChangesOnTheGivenExecutor() throws IOException {
+        final File library = writeFile("libmylib.so", 16);
+        final List<Runnable> saves = new ArrayList<Runnable>();
+        final Executor queue = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                saves.add(command);
+            }
+        };
+        final DependencyCache cache = new DependencyCache(tempFolder.getRoot());
+        cache.put(library, null, dependencies, queue);
+        cache.put(writeFile("libother.so", 16), null, dependencies, queue);
+        assertThat(saves.size(), is(1));
+        assertThat(new File(tempFolder.getRoot(), DependencyCache.FILE_NAME).exists(), is(false));
+
+        saves.get(0).run();
+        assertThat(new DependencyCache(tempFolder.getRoot()).get(library, null), is(dependencies));
+    }
+
+    private File writeFile(final String name, final int size) throws IOException {
+        final File file = new File(tempFolder.getRoot(), name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
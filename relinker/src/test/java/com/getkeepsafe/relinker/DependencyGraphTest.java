@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class DependencyGraphTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final Map<String, List<String>> graph = new HashMap<String, List<String>>();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resolvesLeavesFirst() {
+        graph.put("app", Arrays.asList("a", "b"));
+        graph.put("a", Arrays.asList("c", "log"));
+        graph.put("b", Arrays.asList("c"));
+        graph.put("c", Collections.<String>emptyList());
+        // "log" is a system library that loads normally and is not part of the result
+
+        final DependencyGraph dependencyGraph =
+                new DependencyGraph(new MapResolver(), executor, 4);
+        assertThat(dependencyGraph.resolve(Arrays.asList("app")),
+                is(Arrays.asList("c", "a", "b", "app")));
+    }
+
+    @Test
+    public void toleratesCycles() {
+        graph.put("a", Arrays.asList("b"));
+        graph.put("b", Arrays.asList("a"));
+
+        final DependencyGraph dependencyGraph =
+                new DependencyGraph(new MapResolver(), executor, 4);
+        assertThat(dependencyGraph.resolve(Arrays.asList("a")), is(Arrays.asList("b", "a")));
+    }
+
+    @Test
+    public void resolvesIndependentLibrariesInParallel() {
+        final CountDownLatch latch = new CountDownLatch(3);
+        graph.put("app", Arrays.asList("a", "b", "c"));
+        for (final String library : new String[] {"a", "b", "c"}) {
+            graph.put(library, Collections.<String>emptyList());
+        }
+
+        final DependencyGraph dependencyGraph = new DependencyGraph(new MapResolver() {
+            @Override
+            public List<String> resolve(final String library) {
+                if (!library.equals("app")) {
+                    // Only completes if all three siblings are resolved at the same time
+                    latch.countDown();
+                    try {
+                        if (!latch.await(5, TimeUnit.SECONDS)) {
+                            throw new IllegalStateException("Not resolved in parallel");
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.resolve(library);
+            }
+        }, executor, 4);
+
+        assertThat(dependencyGraph.resolve(Arrays.asList("app")).size(), is(4));
+    }
+
+    @Test
+    public void resolvesOnCallingThreadWhenExecutorRejects() {
+        graph.put("app", Arrays.asList("a"));
+        graph.put("a", Collections.<String>emptyList());
+        executor.shutdown();
+
+        final DependencyGraph dependencyGraph =
+                new DependencyGraph(new MapResolver(), executor, 4);
+        assertThat(dependencyGraph.resolve(Arrays.asList("app")), is(Arrays.asList("a", "app")));
+    }
+
+    @Test
+    public void propagatesFailures() {
+        graph.put("app", Arrays.asList("a", "missing"));
+        graph.put("a", Collections.<String>emptyList());
+
+        final DependencyGraph dependencyGraph = new DependencyGraph(new MapResolver() {
+            @Override
+            public List<String> resolve(final String library) {
+                if (library.equals("missing")) {
+                    throw new MissingLibraryException(library, new String[0], new String[0]);
+                }
+                return super.resolve(library);
+            }
+        }, executor, 4);
+
+        try {
+            dependencyGraph.resolve(Arrays.asList("app"));
+            fail();
+        } catch (MissingLibraryException expected) {
+        }
+    }
+
+    private class MapResolver implements DependencyGraph.Resolver {
+        @Override
+        public List<String> resolve(final String library) {
+            return graph.get(library);
+        }
+    }
+}
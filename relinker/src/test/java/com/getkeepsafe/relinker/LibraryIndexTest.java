@@ -0,0 +1,141 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class LibraryIndexTest {
+    private static final byte[] LIBRARY = "works!".getBytes();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final Executor executor = SharedExecutor.get();
+
+    @After
+    public void tearDown() {
+        LibraryIndex.clear();
+        ZipFileCache.evictIdle(0);
+    }
+
+    @Test
+    public void indexesNativeLibraries() throws IOException {
+        final File apk = writeApk("test.apk", LIBRARY);
+        final LibraryIndex index = LibraryIndex.scan(apk);
+
+        final LibraryIndex.Library library = index.get("x86", "libtest.so");
+        assertThat(library.entryName(), is("lib/x86/libtest.so"));
+        assertThat(library.size, is((long) LIBRARY.length));
+        assertThat(library.crc, is(crcOf(LIBRARY)));
+        assertThat(library.method, is(ZipEntry.STORED));
+        assertThat(readInt(apk, library.localHeaderOffset), is(0x04034b50));
+
+        assertThat(index.get("x86", "classes.dex"), is(nullValue()));
+        assertThat(index.get("x86", "libnested.so"), is(nullValue()));
+        assertThat(index.find(new String[] {"arm64-v8a", "armeabi-v7a"}, "libtest.so").abi,
+                is("armeabi-v7a"));
+        assertThat(Arrays.asList(index.abisFor("libtest.so").toArray()),
+                is(Arrays.<Object>asList("x86", "armeabi-v7a")));
+    }
+
+    @Test
+    public void reusesPersistedIndex() throws IOException {
+        final File apk = writeApk("test.apk", LIBRARY);
+        LibraryIndex.forApk(apk, tempFolder.getRoot(), executor);
+        LibraryIndex.flush(tempFolder.getRoot());
+        assertThat(new File(tempFolder.getRoot(), LibraryIndex.FILE_NAME).exists(), is(true));
+        LibraryIndex.clear();
+
+        // Same size and modification time, so the APK must not be scanned again
+        final long lastModified = apk.lastModified();
+        writeApk("test.apk", "other!".getBytes());
+        apk.setLastModified(lastModified);
+
+        final LibraryIndex index = LibraryIndex.forApk(apk, tempFolder.getRoot(), executor);
+        assertThat(index.get("x86", "libtest.so").crc, is(crcOf(LIBRARY)));
+    }
+
+    @Test
+    public void rescansChangedApk() throws IOException {
+        final File apk = writeApk("test.apk", LIBRARY);
+        LibraryIndex.forApk(apk, tempFolder.getRoot(), executor);
+
+        final byte[] changed = "changed!".getBytes();
+        writeApk("test.apk", changed);
+        final LibraryIndex index = LibraryIndex.forApk(apk, tempFolder.getRoot(), executor);
+        assertThat(index.get("x86", "libtest.so").crc, is(crcOf(changed)));
+    }
+
+    private File writeApk(final String name, final byte[] library) throws IOException {
+        final File apk = new File(tempFolder.getRoot(), name);
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(new byte[64]);
+            out.closeEntry();
+
+            for (final String abi : new String[] {"x86", "armeabi-v7a"}) {
+                final ZipEntry entry = new ZipEntry("lib/" + abi + "/libtest.so");
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(library.length);
+                entry.setCrc(crcOf(library));
+                out.putNextEntry(entry);
+                out.write(library);
+                out.closeEntry();
+            }
+
+            out.putNextEntry(new ZipEntry("lib/x86/nested/libnested.so"));
+            out.write(library);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    private static long crcOf(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static int readInt(final File file, final long offset) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(offset);
+            return Integer.reverseBytes(in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class LibraryManifestTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final Executor executor = SharedExecutor.get();
+
+    @Test
+    public void evictsLeastRecentlyUsedLibrariesFirst() throws IOException {
+        final File oldest = writeFile("libold.so", 100);
+        final File older = writeFile("libolder.so", 100);
+        final File recent = writeFile("librecent.so", 100);
+        final LibraryManifest previousLaunch = new LibraryManifest(tempFolder.getRoot());
+        previousLaunch.touch(oldest, "libold.so", null, 1000, executor);
+        previousLaunch.touch(older, "libolder.so", null, 2000, executor);
+        previousLaunch.touch(recent, "librecent.so", null, 3000, executor);
+        previousLaunch.flush();
+
+        final LibraryManifest manifest = new LibraryManifest(tempFolder.getRoot());
+        final File keep = new File(tempFolder.getRoot(), "libnew.so");
+        assertThat(manifest.evict(150, keep, executor), is(200L));
+        manifest.flush();
+        assertThat(oldest.exists(), is(false));
+        assertThat(older.exists(), is(false));
+        assertThat(recent.exists(), is(true));
+
+        // The evicted libraries are forgotten
+        assertThat(new LibraryManifest(tempFolder.getRoot()).evict(1000, recent, executor), is(0L));
+    }
+
+    @Test
+    public void neverEvictsLibrariesInUse() throws IOException {
+        final File loaded = writeFile("libloaded.so", 100);
+        final File kept = writeFile("libkept.so", 100);
+        final File stale = writeFile("libstale.so", 100);
+        final LibraryManifest previousLaunch = new LibraryManifest(tempFolder.getRoot());
+        previousLaunch.touch(kept, "libkept.so", null, 2000, executor);
+        previousLaunch.touch(stale, "libstale.so", null, 3000, executor);
+        previousLaunch.flush();
+
+        final LibraryManifest manifest = new LibraryManifest(tempFolder.getRoot());
+        manifest.touch(loaded, "libloaded.so", null, 1000, executor);
+
+        assertThat(manifest.evict(1000, kept, executor), is(100L));
+        assertThat(loaded.exists(), is(true));
+        assertThat(kept.exists(), is(true));
+        assertThat(stale.exists(), is(false));
+    }
+
+    @Test
+    public void findsEveryVersionOfALibrary() throws IOException {
+        final File unversioned = writeFile("libfoo.so", 100);
+        final File versioned = writeFile("libfoo.so.2.0", 100);
+        final File other = writeFile("libfoo.so_extra", 100);
+        final LibraryManifest previousLaunch = new LibraryManifest(tempFolder.getRoot());
+        assertThat(previousLaunch.touch(unversioned, "libfoo.so", null, 1000, executor), is(true));
+        assertThat(previousLaunch.touch(versioned, "libfoo.so", "2.0", 2000, executor), is(false));
+        assertThat(previousLaunch.touch(other, "libfoo.so_extra", null, 3000, executor), is(true));
+        previousLaunch.flush();
+
+        final LibraryManifest manifest = new LibraryManifest(tempFolder.getRoot());
+        assertThat(manifest.filesOf("libfoo.so").size(), is(2));
+        assertThat(manifest.filesOf("libfoo.so").containsAll(
+                Arrays.asList(unversioned, versioned)), is(true));
+
+        manifest.remove(unversioned, executor);
+        manifest.flush();
+        assertThat(new LibraryManifest(tempFolder.getRoot()).filesOf("libfoo.so"),
+                is(Arrays.asList(versioned)));
+    }
+
+    private File writeFile(final String name, final int size) throws IOException {
+        final File file = new File(tempFolder.getRoot(), name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
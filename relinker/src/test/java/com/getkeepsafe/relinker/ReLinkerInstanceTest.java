@@ -15,41 +15,72 @@
  */
 package com.getkeepsafe.relinker;
 
-
 import android.content.Context;
 
+import com.getkeepsafe.relinker.elf.ElfFiles;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
-import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
-import org.robolectric.RobolectricTestRunner;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
-@RunWith(RobolectricTestRunner.class)
 public class ReLinkerInstanceTest {
     private static final String TEST_LIB = "mylib";
     private static final String TEST_LIB_MAPPED = "libmylib.so";
-    private static final String TEST_DIR = "lib";
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
 
     @Mock
-    Context context;
+    ReLinker.Platform platform;
     @Mock
     ReLinker.LibraryLoader testLoader;
     @Mock
-    ReLinker.LibraryInstaller testInstaller;
+    ReLinker.PlatformLibraryInstaller testInstaller;
+    @Mock
+    Context context;
     @Rule
     public TemporaryFolder tempFolder = new TemporaryFolder();
 
@@ -60,14 +91,15 @@ public class ReLinkerInstanceTest {
         initMocks(this);
         tempFolder.create();
         libDir = tempFolder.getRoot();
-        when(context.getDir(TEST_DIR, Context.MODE_PRIVATE)).thenReturn(libDir);
+        when(platform.workaroundLibDir()).thenReturn(libDir);
+        when(platform.canLoadFromApk()).thenReturn(true);
         when(testLoader.mapLibraryName(TEST_LIB)).thenReturn(TEST_LIB_MAPPED);
     }
 
     @Test
     public void getsCorrectWorkaroundDirectory() {
         final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
-        assertThat(instance.getWorkaroundLibDir(context), is(libDir));
+        assertThat(instance.getWorkaroundLibDir(platform), is(libDir));
     }
 
     @Test
@@ -75,10 +107,10 @@ public class ReLinkerInstanceTest {
         final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
         final String libName = testLoader.mapLibraryName(TEST_LIB);
         final File libFile = new File(libDir, libName);
-        assertThat(instance.getWorkaroundLibFile(context, TEST_LIB, null), is(libFile));
+        assertThat(instance.getWorkaroundLibFile(platform, TEST_LIB, null), is(libFile));
 
         final File versionedLibFile = new File(libDir, libName + ".2.0");
-        assertThat(instance.getWorkaroundLibFile(context, TEST_LIB, "2.0"), is(versionedLibFile));
+        assertThat(instance.getWorkaroundLibFile(platform, TEST_LIB, "2.0"), is(versionedLibFile));
     }
 
     @Test
@@ -91,28 +123,67 @@ public class ReLinkerInstanceTest {
         tempFolder.newFile(mappedName + ".4.0");
 
         assertThat(libDir.listFiles().length, is(4));
-        instance.cleanupOldLibFiles(context, TEST_LIB, "4.0");
+        instance.cleanupOldLibFiles(platform, TEST_LIB, "4.0");
         assertThat(libDir.listFiles().length, is(1));
 
         tempFolder.newFile(mappedName);
         tempFolder.newFile(mappedName + ".2.0");
         tempFolder.newFile(mappedName + ".3.4");
         assertThat(libDir.listFiles().length, is(4));
-        instance.cleanupOldLibFiles(context, TEST_LIB, null);
+        instance.cleanupOldLibFiles(platform, TEST_LIB, null);
         assertThat(libDir.listFiles().length, is(1));
 
         tempFolder.newFile(mappedName + ".2.0");
         tempFolder.newFile(mappedName + ".3.4");
         tempFolder.newFile(mappedName + ".4.0");
         assertThat(libDir.listFiles().length, is(4));
-        instance.force().cleanupOldLibFiles(context, TEST_LIB, "4.0");
+        instance.force().cleanupOldLibFiles(platform, TEST_LIB, "4.0");
         assertThat(libDir.listFiles().length, is(0));
     }
 
+    @Test
+    public void doesNotCleanupLibrariesSharingAPrefix() throws IOException {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final File other = tempFolder.newFile(TEST_LIB_MAPPED + "_extra");
+        tempFolder.newFile(TEST_LIB_MAPPED + ".2.0");
+
+        instance.cleanupOldLibFiles(platform, TEST_LIB, null);
+        assertThat(other.exists(), is(true));
+        assertThat(libDir.listFiles().length, is(1));
+    }
+
+    @Test
+    public void cleansUpOtherVersionsAfterLoading() throws IOException {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .executor(DIRECT_EXECUTOR);
+        final File oldVersion = tempFolder.newFile(TEST_LIB_MAPPED + ".1.0");
+        final File newVersion = tempFolder.newFile(TEST_LIB_MAPPED + ".2.0");
+        final File unrelated = tempFolder.newFile(TEST_LIB_MAPPED + "_extra");
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+
+        instance.loadLibrary(platform, TEST_LIB, "1.0");
+        assertThat(newVersion.exists(), is(false));
+        assertThat(oldVersion.exists(), is(true));
+
+        // The manifest now knows about 1.0, so loading 2.0 on the next launch deletes it
+        // without a listing
+        tempFolder.newFile(TEST_LIB_MAPPED + ".2.0");
+        new ReLinkerInstance(testLoader, testInstaller)
+                .executor(DIRECT_EXECUTOR)
+                .loadLibrary(platform, TEST_LIB, "2.0");
+        verify(testInstaller, never()).installLibrary(any(ReLinker.Platform.class),
+                any(String[].class), anyString(), any(File.class), any(ReLinkerInstance.class));
+        assertThat(oldVersion.exists(), is(false));
+        assertThat(newVersion.exists(), is(true));
+        assertThat(unrelated.exists(), is(true));
+    }
+
     @Test
     public void loadsLibraryNormally() {
         final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
-        instance.loadLibrary(context, TEST_LIB);
+        instance.loadLibrary(platform, TEST_LIB);
     }
 
     @Test
@@ -124,17 +195,552 @@ public class ReLinkerInstanceTest {
         doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
         when(testLoader.supportedAbis()).thenReturn(abis);
 
-        instance.loadLibrary(context, TEST_LIB);
+        instance.loadLibrary(platform, TEST_LIB);
         verify(testLoader).loadLibrary(TEST_LIB);
         verify(testLoader).loadPath(workaroundFile.getAbsolutePath());
         verify(testLoader).supportedAbis();
-        verify(testInstaller).installLibrary(context, abis, TEST_LIB_MAPPED, workaroundFile, instance);
+        verify(testInstaller).installLibrary(platform, abis, TEST_LIB_MAPPED, workaroundFile,
+                instance);
 
-        instance.force().loadLibrary(context, TEST_LIB);
+        instance.force().loadLibrary(platform, TEST_LIB);
         verify(testLoader, times(2)).loadLibrary(TEST_LIB);
         verify(testLoader, times(2)).loadPath(workaroundFile.getAbsolutePath());
         verify(testLoader, times(2)).supportedAbis();
         verify(testInstaller, times(2)).installLibrary(
-                context, abis, TEST_LIB_MAPPED, workaroundFile, instance);
+                platform, abis, TEST_LIB_MAPPED, workaroundFile, instance);
+    }
+
+    @Test
+    public void cachesDependenciesOfRelinkedLibraries() throws IOException {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .executor(DIRECT_EXECUTOR);
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        final DependencyCache cache = DependencyCache.forDirectory(libDir);
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        installsLibdl();
+
+        instance.recursively().loadLibrary(platform, TEST_LIB);
+        assertThat(cache.get(workaroundFile, null), is(Collections.<String>emptyList()));
+
+        // The cleanup that follows a forced load keeps the library it just loaded
+        instance.force().loadLibrary(platform, TEST_LIB);
+        assertThat(workaroundFile.exists(), is(true));
+        assertThat(cache.get(workaroundFile, null), is(Collections.<String>emptyList()));
+
+        instance.cleanupOldLibFiles(platform, TEST_LIB, null);
+        assertThat(cache.get(workaroundFile, null), is(nullValue()));
+    }
+
+    @Test
+    public void loadsRecursiveDependenciesLeafFirst() {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .executor(DIRECT_EXECUTOR);
+        installsDependencyChain();
+
+        instance.recursively().loadLibrary(platform, TEST_LIB);
+        final InOrder order = inOrder(testLoader);
+        order.verify(testLoader).loadPath(new File(libDir, "libleaf.so").getAbsolutePath());
+        order.verify(testLoader).loadPath(new File(libDir, "libmiddle.so").getAbsolutePath());
+        order.verify(testLoader).loadPath(new File(libDir, TEST_LIB_MAPPED).getAbsolutePath());
+        verify(testLoader).loadLibrary("c");
+        verify(testLoader, never()).loadPath(new File(libDir, "libc.so").getAbsolutePath());
+    }
+
+    @Test
+    public void loadsBatchInDependencyOrder() {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .executor(DIRECT_EXECUTOR);
+        installsDependencyChain();
+
+        final List<LoadResult> results =
+                instance.loadLibraries(platform, TEST_LIB, "leaf", "middle");
+        final InOrder order = inOrder(testLoader);
+        order.verify(testLoader).loadPath(new File(libDir, "libleaf.so").getAbsolutePath());
+        order.verify(testLoader).loadPath(new File(libDir, "libmiddle.so").getAbsolutePath());
+        order.verify(testLoader).loadPath(new File(libDir, TEST_LIB_MAPPED).getAbsolutePath());
+        assertThat(results.get(0).library, is(TEST_LIB));
+        assertThat(results.get(1).library, is("leaf"));
+        assertThat(results.get(2).library, is("middle"));
+        // Outside of recursive loads, only the dependencies within the batch are loaded
+        verify(testLoader, never()).loadLibrary("c");
+    }
+
+    @Test
+    public void reportsLoadMetrics() {
+        final ReLinker.MetricsListener metrics = mock(ReLinker.MetricsListener.class);
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .metrics(metrics);
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        installsLibdl();
+
+        instance.recursively().loadLibrary(platform, TEST_LIB);
+        verify(metrics).onPhase(eq(TEST_LIB), eq(ReLinker.Phase.SYSTEM_LOAD), anyLong());
+        verify(metrics).onPhase(eq(TEST_LIB), eq(ReLinker.Phase.ELF_PARSE), anyLong());
+        verify(metrics).onPhase(eq(TEST_LIB), eq(ReLinker.Phase.LOAD_PATH), anyLong());
+        verify(metrics).onLoaded(eq(TEST_LIB), eq(ReLinker.Source.EXTRACTED), anyLong());
+    }
+
+    @Test
+    public void reportsLibrariesLoadedNormally() {
+        final ReLinker.MetricsListener metrics = mock(ReLinker.MetricsListener.class);
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .metrics(metrics);
+
+        instance.loadLibrary(platform, TEST_LIB);
+        verify(metrics).onPhase(eq(TEST_LIB), eq(ReLinker.Phase.SYSTEM_LOAD), anyLong());
+        verify(metrics).onLoaded(eq(TEST_LIB), eq(ReLinker.Source.SYSTEM), anyLong());
+        verify(metrics, never()).onPhase(anyString(), eq(ReLinker.Phase.LOAD_PATH), anyLong());
+    }
+
+    @Test
+    public void sharesConcurrentLoadsOfTheSameLibrary() throws Exception {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        final CountDownLatch installing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                installing.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(testInstaller).installLibrary(any(ReLinker.Platform.class), any(String[].class),
+                anyString(), any(File.class), any(ReLinkerInstance.class));
+
+        final Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                instance.loadLibrary(platform, TEST_LIB);
+            }
+        });
+        final Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                instance.loadLibrary(platform, TEST_LIB);
+            }
+        });
+        first.start();
+        assertThat(installing.await(5, TimeUnit.SECONDS), is(true));
+        second.start();
+        // Give the second load a chance to start extracting on its own, which it must not do
+        Thread.sleep(100);
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+
+        verify(testInstaller, times(1)).installLibrary(
+                any(ReLinker.Platform.class), any(String[].class), anyString(), any(File.class),
+                any(ReLinkerInstance.class));
+        verify(testLoader, times(1)).loadPath(workaroundFile.getAbsolutePath());
+    }
+
+    @Test
+    public void sharesConcurrentExtractionsAcrossInstances() throws Exception {
+        final ReLinkerInstance first = new ReLinkerInstance(testLoader, testInstaller);
+        final ReLinkerInstance second = new ReLinkerInstance(testLoader, testInstaller);
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        final CountDownLatch installing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                installing.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(testInstaller).installLibrary(any(ReLinker.Platform.class), any(String[].class),
+                anyString(), any(File.class), any(ReLinkerInstance.class));
+
+        final Thread firstLoad = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                first.loadLibrary(platform, TEST_LIB);
+            }
+        });
+        final Thread secondLoad = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                second.loadLibrary(platform, TEST_LIB);
+            }
+        });
+        firstLoad.start();
+        assertThat(installing.await(5, TimeUnit.SECONDS), is(true));
+        secondLoad.start();
+        // Give the second instance a chance to start extracting on its own, which it must not do
+        Thread.sleep(100);
+        release.countDown();
+        firstLoad.join(5000);
+        secondLoad.join(5000);
+
+        verify(testInstaller, times(1)).installLibrary(
+                any(ReLinker.Platform.class), any(String[].class), anyString(), any(File.class),
+                any(ReLinkerInstance.class));
+        verify(testLoader, times(2)).loadPath(workaroundFile.getAbsolutePath());
+    }
+
+    @Test
+    public void formatsLogMessages() {
+        final ReLinker.Logger logger = mock(ReLinker.Logger.class);
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller)
+                .log(logger);
+
+        instance.log("%s", TEST_LIB);
+        instance.log("%s (%s)", TEST_LIB, null);
+        instance.log("%s %d %s", TEST_LIB, 2, "3");
+        verify(logger).log(TEST_LIB);
+        verify(logger).log(TEST_LIB + " (null)");
+        verify(logger).log(TEST_LIB + " 2 3");
+    }
+
+    @Test
+    public void givesContextToContextInstallers() {
+        final ReLinker.LibraryInstaller contextInstaller = mock(ReLinker.LibraryInstaller.class);
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, contextInstaller);
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        when(context.getDir("lib", Context.MODE_PRIVATE)).thenReturn(libDir);
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+
+        instance.loadLibrary(context, TEST_LIB);
+        verify(contextInstaller).installLibrary(context, new String[] {"x86"}, TEST_LIB_MAPPED,
+                workaroundFile, instance);
+
+        try {
+            instance.force().loadLibrary(platform, TEST_LIB);
+            fail("Context installers can't install for other platforms");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void usesOverriddenContextWorkaroundDirectory() {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller) {
+            @Override
+            protected File getWorkaroundLibDir(final Context context) {
+                return libDir;
+            }
+        };
+        final File workaroundFile = new File(libDir, TEST_LIB_MAPPED);
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+
+        instance.loadLibrary(context, TEST_LIB);
+        verify(context, never()).getDir(anyString(), anyInt());
+        verify(testInstaller).installLibrary(any(ReLinker.Platform.class), any(String[].class),
+                eq(TEST_LIB_MAPPED), eq(workaroundFile), eq(instance));
+        verify(testLoader).loadPath(workaroundFile.getAbsolutePath());
+    }
+
+    @Test
+    public void loadsAsynchronouslyOnGivenExecutor() {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final ReLinker.LoadListener listener = mock(ReLinker.LoadListener.class);
+
+        instance.executor(queueingInto(tasks)).loadLibrary(platform, TEST_LIB, listener);
+
+        verify(testLoader, never()).loadLibrary(TEST_LIB);
+        assertThat(tasks.size(), is(1));
+        tasks.get(0).run();
+        verify(testLoader).loadLibrary(TEST_LIB);
+        verify(listener).success();
+    }
+
+    @Test
+    public void asyncLoadReportsHowTheLibraryWasLoaded() throws Exception {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        final ReLinker.LoadListener listener = mock(ReLinker.LoadListener.class);
+
+        final LoadResult normal = instance.loadLibraryAsync(platform, TEST_LIB, null)
+                .addListener(listener)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(normal.relinked, is(false));
+        assertThat(normal.path, is(nullValue()));
+        verify(listener, timeout(5000)).success();
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        final LoadResult relinked = instance.force().loadLibraryAsync(platform, TEST_LIB, null)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(relinked.relinked, is(true));
+        assertThat(relinked.path, is(workaroundFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void asyncLoadReportsFailures() throws Exception {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final ReLinker.LoadListener listener = mock(ReLinker.LoadListener.class);
+        final MissingLibraryException missing =
+                new MissingLibraryException(TEST_LIB_MAPPED, new String[0], new String[0]);
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        doThrow(missing).when(testInstaller).installLibrary(any(ReLinker.Platform.class),
+                any(String[].class), anyString(), any(File.class), any(ReLinkerInstance.class));
+
+        final LoadFuture future = instance.loadLibraryAsync(platform, TEST_LIB, null);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is((Throwable) missing));
+        }
+
+        future.addListener(listener);
+        verify(listener).failure(missing);
+    }
+
+    @Test
+    public void cancelsAsyncLoadBeforeItStarts() {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final ReLinker.LoadListener listener = mock(ReLinker.LoadListener.class);
+
+        final LoadFuture future = instance.executor(queueingInto(tasks))
+                .loadLibraryAsync(platform, TEST_LIB, null).addListener(listener);
+
+        assertThat(future.cancel(false), is(true));
+        tasks.get(0).run();
+        assertThat(future.isCancelled(), is(true));
+        verify(testLoader, never()).loadLibrary(TEST_LIB);
+        verify(listener).failure(any(CancellationException.class));
+    }
+
+    @Test
+    public void doesNotCancelRunningAsyncLoad() throws Exception {
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, testInstaller);
+        final ReLinker.LoadListener listener = mock(ReLinker.LoadListener.class);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                loading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(testLoader).loadLibrary(TEST_LIB);
+
+        final LoadFuture future = instance.executor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                new Thread(command).start();
+            }
+        }).loadLibraryAsync(platform, TEST_LIB, null).addListener(listener);
+
+        assertThat(loading.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(future.cancel(true), is(false));
+        release.countDown();
+
+        assertThat(future.get(5, TimeUnit.SECONDS).relinked, is(false));
+        assertThat(future.isCancelled(), is(false));
+        verify(listener, timeout(5000)).success();
+        verify(listener, never()).failure(any(Throwable.class));
+    }
+
+    @Test
+    public void loadsSeveralLibrariesInOneInstall() {
+        final ReLinker.BatchLibraryInstaller batchInstaller =
+                mock(ReLinker.BatchLibraryInstaller.class);
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, batchInstaller);
+        final String[] abis = new String[] {"x86"};
+        final File first = new File(libDir.getAbsolutePath(), "libfirst.so");
+        final File second = new File(libDir.getAbsolutePath(), "libsecond.so.2.0");
+
+        when(testLoader.mapLibraryName("first")).thenReturn("libfirst.so");
+        when(testLoader.mapLibraryName("second")).thenReturn("libsecond.so");
+        when(testLoader.supportedAbis()).thenReturn(abis);
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary("first");
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary("second");
+
+        final List<LoadResult> results = instance.loadLibraries(platform,
+                new String[] {"first", TEST_LIB, "second"}, new String[] {null, null, "2.0"});
+
+        verify(batchInstaller).installLibraries(platform, abis,
+                new String[] {"libfirst.so", "libsecond.so"}, new File[] {first, second},
+                instance);
+        verify(batchInstaller, never()).installLibrary(any(ReLinker.Platform.class),
+                any(String[].class), anyString(), any(File.class), any(ReLinkerInstance.class));
+        verify(testLoader).loadPath(first.getAbsolutePath());
+        verify(testLoader).loadPath(second.getAbsolutePath());
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).relinked, is(true));
+        assertThat(results.get(1).relinked, is(false));
+        assertThat(results.get(2).path, is(second.getAbsolutePath()));
+    }
+
+    @Test
+    public void extractsOutOfDateLibrariesAgain() throws IOException {
+        final ReLinker.VerifiableLibraryInstaller verifiableInstaller =
+                mock(ReLinker.VerifiableLibraryInstaller.class);
+        final ReLinkerInstance instance = new ReLinkerInstance(testLoader, verifiableInstaller);
+        final File workaroundFile = tempFolder.newFile(TEST_LIB_MAPPED);
+        final String[] abis = new String[] {"x86"};
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(abis);
+        when(verifiableInstaller.isInstalled(platform, abis, TEST_LIB_MAPPED, workaroundFile,
+                instance)).thenReturn(true);
+
+        instance.loadLibrary(platform, TEST_LIB);
+        verify(verifiableInstaller, never()).installLibrary(any(ReLinker.Platform.class),
+                any(String[].class), anyString(), any(File.class), any(ReLinkerInstance.class));
+
+        when(verifiableInstaller.isInstalled(platform, abis, TEST_LIB_MAPPED, workaroundFile,
+                instance)).thenReturn(false);
+        instance.loadedLibraries.clear();
+        instance.loadLibrary(platform, TEST_LIB);
+        verify(verifiableInstaller).installLibrary(platform, abis, TEST_LIB_MAPPED,
+                workaroundFile, instance);
+        verify(testLoader, times(2)).loadPath(workaroundFile.getAbsolutePath());
+    }
+
+    @Test
+    public void loadsPageAlignedLibraryFromApk() {
+        final ReLinker.DirectLibraryInstaller directInstaller =
+                mock(ReLinker.DirectLibraryInstaller.class);
+        final ReLinkerInstance instance =
+                new ReLinkerInstance(testLoader, directInstaller).loadFromApk();
+        final String[] abis = new String[] {"x86"};
+        final String pathInApk = "/data/app/base.apk!/lib/x86/" + TEST_LIB_MAPPED;
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(abis);
+        when(directInstaller.findLibraryInApk(platform, abis, TEST_LIB_MAPPED, instance))
+                .thenReturn(pathInApk);
+
+        instance.loadLibrary(platform, TEST_LIB);
+        verify(testLoader).loadPath(pathInApk);
+        verify(directInstaller, never()).installLibrary(any(ReLinker.Platform.class),
+                any(String[].class), anyString(), any(File.class), any(ReLinkerInstance.class));
+        assertThat(libDir.listFiles().length, is(0));
+    }
+
+    @Test
+    public void extractsLibrariesThatCannotBeLoadedFromApk() {
+        final ReLinker.DirectLibraryInstaller directInstaller =
+                mock(ReLinker.DirectLibraryInstaller.class);
+        final ReLinkerInstance instance =
+                new ReLinkerInstance(testLoader, directInstaller).loadFromApk();
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        final String[] abis = new String[] {"x86"};
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(abis);
+
+        instance.loadLibrary(platform, TEST_LIB);
+        verify(directInstaller).findLibraryInApk(platform, abis, TEST_LIB_MAPPED, instance);
+        verify(directInstaller).installLibrary(platform, abis, TEST_LIB_MAPPED, workaroundFile,
+                instance);
+        verify(testLoader).loadPath(workaroundFile.getAbsolutePath());
+    }
+
+    @Test
+    public void extractsLibrariesWhenPlatformCannotLoadFromApk() {
+        final ReLinker.DirectLibraryInstaller directInstaller =
+                mock(ReLinker.DirectLibraryInstaller.class);
+        final ReLinkerInstance instance =
+                new ReLinkerInstance(testLoader, directInstaller).loadFromApk();
+        final File workaroundFile = new File(libDir.getAbsolutePath(), TEST_LIB_MAPPED);
+        final String[] abis = new String[] {"x86"};
+
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(anyString());
+        when(testLoader.supportedAbis()).thenReturn(abis);
+        when(platform.canLoadFromApk()).thenReturn(false);
+
+        instance.loadLibrary(platform, TEST_LIB);
+        verify(directInstaller, never()).findLibraryInApk(any(ReLinker.Platform.class),
+                any(String[].class), anyString(), any(ReLinkerInstance.class));
+        verify(directInstaller).installLibrary(platform, abis, TEST_LIB_MAPPED, workaroundFile,
+                instance);
+        verify(testLoader).loadPath(workaroundFile.getAbsolutePath());
+    }
+
+    /**
+     * Makes {@link #testInstaller} extract a copy of the libdl.so test resource
+     */
+    private void installsLibdl() {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                copy(new File(getClass().getClassLoader().getResource("libdl.so").getFile()),
+                        (File) invocation.getArguments()[3]);
+                return null;
+            }
+        }).when(testInstaller).installLibrary(any(ReLinker.Platform.class), any(String[].class),
+                anyString(), any(File.class), any(ReLinkerInstance.class));
+    }
+
+    /**
+     * Makes {@link #testInstaller} extract real ELF files, where {@link #TEST_LIB} depends on
+     * "middle", which depends on "leaf". All of them depend on "c", the only one that loads
+     * normally.
+     */
+    private void installsDependencyChain() {
+        final Map<String, String[]> needed = new HashMap<String, String[]>();
+        needed.put(TEST_LIB_MAPPED, new String[] {"libmiddle.so", "libc.so"});
+        needed.put("libmiddle.so", new String[] {"libleaf.so", "libc.so"});
+        needed.put("libleaf.so", new String[] {"libc.so"});
+
+        for (final String library : new String[] {"middle", "leaf", "c"}) {
+            when(testLoader.mapLibraryName(library)).thenReturn("lib" + library + ".so");
+            when(testLoader.unmapLibraryName("lib" + library + ".so")).thenReturn(library);
+        }
+        when(testLoader.unmapLibraryName(TEST_LIB_MAPPED)).thenReturn(TEST_LIB);
+        when(testLoader.supportedAbis()).thenReturn(new String[] {"x86"});
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary(TEST_LIB);
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary("middle");
+        doThrow(new UnsatisfiedLinkError("boo")).when(testLoader).loadLibrary("leaf");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ElfFiles.write((File) invocation.getArguments()[3], false, false,
+                        needed.get((String) invocation.getArguments()[2]));
+                return null;
+            }
+        }).when(testInstaller).installLibrary(any(ReLinker.Platform.class), any(String[].class),
+                anyString(), any(File.class), any(ReLinkerInstance.class));
+    }
+
+    /**
+     * @return An {@link Executor} that only queues its tasks into {@code tasks}
+     */
+    private static Executor queueingInto(final List<Runnable> tasks) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        };
+    }
+
+    private static void copy(final File from, final File to) throws IOException {
+        final FileInputStream in = new FileInputStream(from);
+        final FileOutputStream out = new FileOutputStream(to);
+        try {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
     }
 }
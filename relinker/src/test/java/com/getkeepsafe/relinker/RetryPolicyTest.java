@@ -0,0 +1,77 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.zip.ZipException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    @Test
+    public void retriesTransientErrorsUpToMaxAttempts() {
+        final RetryPolicy policy = new RetryPolicy(3, 0, 0);
+        final IOException error = new IOException("read failed: EIO (I/O error)");
+        assertThat(policy.retry(1, error), is(true));
+        assertThat(policy.retry(2, error), is(true));
+        assertThat(policy.retry(3, error), is(false));
+        assertThat(RetryPolicy.NO_RETRIES.retry(1, error), is(false));
+    }
+
+    @Test
+    public void failsPermanentErrorsImmediately() {
+        final RetryPolicy policy = new RetryPolicy(3, 0, 0);
+        final IOException full = new IOException("write failed: ENOSPC (No space left on device)");
+        assertThat(policy.retry(1, full), is(false));
+        assertThat(policy.retry(1, new ZipException("invalid LOC header")), is(false));
+        assertThat(policy.retry(1, new IOException()), is(true));
+    }
+
+    @Test
+    public void retriesFilesThatCannotBeOpened() {
+        final RetryPolicy policy = new RetryPolicy(3, 0, 0);
+        assertThat(policy.retry(1, new FileNotFoundException(
+                "/data/app/base.apk: open failed: EMFILE (Too many open files)")), is(true));
+        assertThat(policy.retry(1, new FileNotFoundException(
+                "/data/app/base.apk: open failed: EBUSY (Device or resource busy)")), is(true));
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        final RetryPolicy policy = new RetryPolicy(10, 10, 200);
+        assertThat(policy.delayBefore(1), is(0L));
+        for (int i = 0; i < 100; ++i) {
+            assertBetween(policy.delayBefore(2), 5, 10);
+            assertBetween(policy.delayBefore(3), 10, 20);
+            assertBetween(policy.delayBefore(4), 20, 40);
+            assertBetween(policy.delayBefore(9), 100, 200);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresAnAttempt() {
+        new RetryPolicy(0, 0, 0);
+    }
+
+    private static void assertBetween(final long value, final long min, final long max) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class ZipFileCacheTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @After
+    public void evictAll() {
+        ZipFileCache.evictIdle(0);
+    }
+
+    @Test
+    public void sharesOpenApks() throws IOException {
+        final File apk = writeApk("test.apk");
+        final ZipFileCache.Handle first = ZipFileCache.acquire(apk);
+        final ZipFileCache.Handle second = ZipFileCache.acquire(apk);
+        assertThat(second.zipFile, is(sameInstance(first.zipFile)));
+        first.close();
+        second.close();
+
+        final ZipFileCache.Handle third = ZipFileCache.acquire(apk);
+        assertThat(third.zipFile, is(sameInstance(first.zipFile)));
+        third.close();
+    }
+
+    @Test
+    public void reopensChangedApks() throws IOException {
+        final File apk = writeApk("test.apk");
+        final ZipFileCache.Handle first = ZipFileCache.acquire(apk);
+        first.close();
+
+        apk.setLastModified(apk.lastModified() - 10000);
+        final ZipFileCache.Handle second = ZipFileCache.acquire(apk);
+        assertThat(second.zipFile, is(not(sameInstance(first.zipFile))));
+        assertClosed(first);
+        second.close();
+    }
+
+    @Test
+    public void closesReplacedApksWhenReleased() throws IOException {
+        final File apk = writeApk("test.apk");
+        final ZipFileCache.Handle first = ZipFileCache.acquire(apk);
+
+        apk.setLastModified(apk.lastModified() - 10000);
+        final ZipFileCache.Handle second = ZipFileCache.acquire(apk);
+        assertThat(first.zipFile.getEntry("lib/x86/libtest.so"), is(notNullValue()));
+
+        first.close();
+        assertClosed(first);
+        second.close();
+    }
+
+    @Test
+    public void closesIdleApks() throws IOException {
+        final File apk = writeApk("test.apk");
+        final ZipFileCache.Handle handle = ZipFileCache.acquire(apk);
+        ZipFileCache.evictIdle(0);
+        assertThat(handle.zipFile.getEntry("lib/x86/libtest.so"), is(notNullValue()));
+
+        handle.close();
+        handle.close();
+        ZipFileCache.evictIdle(0);
+        assertClosed(handle);
+    }
+
+    private void assertClosed(final ZipFileCache.Handle handle) {
+        try {
+            handle.zipFile.getEntry("lib/x86/libtest.so");
+        } catch (IllegalStateException expected) {
+            return;
+        }
+        throw new AssertionError("Expected " + handle.zipFile.getName() + " to be closed");
+    }
+
+    private File writeApk(final String name) throws IOException {
+        final File apk = tempFolder.newFile(name);
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            out.putNextEntry(new ZipEntry("lib/x86/libtest.so"));
+            out.write("works!".getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+}
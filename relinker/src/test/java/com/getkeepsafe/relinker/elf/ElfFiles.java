@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015 - 2016 KeepSafe Software, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.relinker.elf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal shared objects for the tests, of any class and byte order
+ */
+public final class ElfFiles {
+    public static final int STRING_TABLE_OFFSET = 0x200;
+
+    private ElfFiles() {}
+
+    public static File write(final File file, final boolean is64, final boolean bigEndian,
+                             final String... needed) throws IOException {
+        return write(file, build(is64, bigEndian, needed));
+    }
+
+    public static File write(final File file, final ByteBuffer elf) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(elf.array());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Builds a minimal shared object with one PT_LOAD segment mapping the whole file at vaddr 0,
+     * a PT_DYNAMIC segment listing {@code needed} and a string table at
+     * {@link #STRING_TABLE_OFFSET}.
+     */
+    public static ByteBuffer build(final boolean is64, final boolean bigEndian,
+                                   final String... needed) {
+        final Charset utf8 = Charset.forName("UTF-8");
+        final ByteBuffer strings = ByteBuffer.allocate(0x400);
+        final long[] nameOffsets = new long[needed.length];
+        strings.put((byte) 0);
+        for (int i = 0; i < needed.length; ++i) {
+            nameOffsets[i] = strings.position();
+            strings.put(needed[i].getBytes(utf8)).put((byte) 0);
+        }
+        final int stringTableSize = strings.position();
+        final int fileSize = STRING_TABLE_OFFSET + stringTableSize;
+
+        final ByteBuffer elf = ByteBuffer.allocate(fileSize);
+        elf.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[] {0x7F, 'E', 'L', 'F'});
+        elf.put(4, (byte) (is64 ? Elf.Header.ELFCLASS64 : Elf.Header.ELFCLASS32));
+        elf.put(5, (byte) (bigEndian ? Elf.Header.ELFDATA2MSB : 1));
+        elf.putShort(0x10, (short) 3); // ET_DYN
+
+        final int phoff = is64 ? 0x40 : 0x34;
+        final int phentsize = is64 ? 0x38 : 0x20;
+        final int dynamicOffset = phoff + 2 * phentsize;
+        final int dynamicEntrySize = is64 ? 16 : 8;
+        final int dynamicSize = (needed.length + 3) * dynamicEntrySize;
+        if (is64) {
+            elf.putLong(0x20, phoff);
+            elf.putShort(0x36, (short) phentsize);
+            elf.putShort(0x38, (short) 2);
+        } else {
+            elf.putInt(0x1C, phoff);
+            elf.putShort(0x2A, (short) phentsize);
+            elf.putShort(0x2C, (short) 2);
+        }
+
+        putProgramHeader(elf, is64, phoff, Elf.ProgramHeader.PT_LOAD, 0, fileSize);
+        putProgramHeader(elf, is64, phoff + phentsize, Elf.ProgramHeader.PT_DYNAMIC,
+                dynamicOffset, dynamicSize);
+
+        int entry = dynamicOffset;
+        for (final long nameOffset : nameOffsets) {
+            putWord(elf, is64, entry, Elf.DynamicStructure.DT_NEEDED);
+            putWord(elf, is64, entry + dynamicEntrySize / 2, nameOffset);
+            entry += dynamicEntrySize;
+        }
+        putWord(elf, is64, entry, Elf.DynamicStructure.DT_STRTAB);
+        putWord(elf, is64, entry + dynamicEntrySize / 2, STRING_TABLE_OFFSET);
+        entry += dynamicEntrySize;
+        putWord(elf, is64, entry, Elf.DynamicStructure.DT_STRSZ);
+        putWord(elf, is64, entry + dynamicEntrySize / 2, stringTableSize);
+
+        elf.position(STRING_TABLE_OFFSET);
+        elf.put(strings.array(), 0, stringTableSize);
+        return elf;
+    }
+
+    private static void putProgramHeader(final ByteBuffer elf, final boolean is64,
+                                         final int base, final int type, final long offset,
+                                         final long size) {
+        elf.putInt(base, type);
+        if (is64) {
+            elf.putLong(base + 0x8, offset);
+            elf.putLong(base + 0x10, offset);
+            elf.putLong(base + 0x20, size);
+            elf.putLong(base + 0x28, size);
+        } else {
+            elf.putInt(base + 0x4, (int) offset);
+            elf.putInt(base + 0x8, (int) offset);
+            elf.putInt(base + 0x10, (int) size);
+            elf.putInt(base + 0x14, (int) size);
+        }
+    }
+
+    private static void putWord(final ByteBuffer elf, final boolean is64, final int index,
+                                final long value) {
+        if (is64) {
+            elf.putLong(index, value);
+        } else {
+            elf.putInt(index, (int) value);
+        }
+    }
+
+}
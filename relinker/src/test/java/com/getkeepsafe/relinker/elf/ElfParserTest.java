@@ -1,12 +1,24 @@
 package com.getkeepsafe.relinker.elf;
 
 import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
 
 public class ElfParserTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     ElfParser elfParser;
 
     @After
@@ -20,4 +32,156 @@ public class ElfParserTest {
         elfParser = new ElfParser(new File(getClass().getClassLoader().getResource("libdl.so").getFile()));
         elfParser.parseNeededDependencies();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void programHeaderTableIsReadOnce() throws IOException {
+        final File file = new File(getClass().getClassLoader().getResource("libdl.so").getFile());
+        final CountingElfParser parser = new CountingElfParser(file);
+        elfParser = parser;
+
+        final Elf.Header header = parser.parseHeader();
+        final long tableStart = header.phoff;
+        final long tableEnd = tableStart + (long) header.phnum * header.phentsize;
+
+        parser.reads.clear();
+        parser.parseNeededDependencies();
+
+        int tableReads = 0;
+        for (final long[] read : parser.reads) {
+            if (read[0] < tableEnd && read[0] + read[1] > tableStart) {
+                assertThat(read[0], is(tableStart));
+                assertThat(read[1], is(tableEnd - tableStart));
+                ++tableReads;
+            }
+        }
+        assertThat(tableReads, is(1));
+    }
+
+    @Test
+    public void dynamicSectionIsReadOnce() throws IOException {
+        final File file = new File(getClass().getClassLoader().getResource("libdl.so").getFile());
+        final CountingElfParser parser = new CountingElfParser(file);
+        elfParser = parser;
+
+        final Elf.Header header = parser.parseHeader();
+        final ProgramHeaderTable programHeaders = header.getProgramHeaderTable(header.phnum);
+        final int dynamicIndex = programHeaders.indexOf(Elf.ProgramHeader.PT_DYNAMIC);
+        final long sectionStart = programHeaders.offset[dynamicIndex];
+        final long sectionEnd = sectionStart + programHeaders.filesz[dynamicIndex];
+
+        parser.reads.clear();
+        parser.parseNeededDependencies();
+
+        int sectionReads = 0;
+        for (final long[] read : parser.reads) {
+            if (read[0] < sectionEnd && read[0] + read[1] > sectionStart) {
+                assertThat(read[0], is(sectionStart));
+                assertThat(read[1], is(sectionEnd - sectionStart));
+                ++sectionReads;
+            }
+        }
+        assertThat(sectionReads, is(1));
+    }
+
+    @Test
+    public void parsesUtf8DependencyNames() throws IOException {
+        final String[] needed = new String[] {
+                "libc.so", "lib\u00fcn\u00efc\u00f8d\u00e9.so", "lib\u4f9d\u8d56.so"};
+        for (final boolean is64 : new boolean[] {false, true}) {
+            for (final boolean bigEndian : new boolean[] {false, true}) {
+                final File file = writeElf(is64, bigEndian, needed);
+                final ElfParser parser = new ElfParser(file);
+                try {
+                    assertThat(parser.parseNeededDependencies(), is(Arrays.asList(needed)));
+                } finally {
+                    parser.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stringTableIsReadOnce() throws IOException {
+        final String[] needed = new String[] {"libc.so", "libm.so", "liblog.so", "libz.so"};
+        final CountingElfParser parser = new CountingElfParser(writeElf(true, false, needed));
+        elfParser = parser;
+
+        assertThat(parser.parseNeededDependencies(), is(Arrays.asList(needed)));
+
+        int stringTableReads = 0;
+        for (final long[] read : parser.reads) {
+            if (read[0] >= ElfFiles.STRING_TABLE_OFFSET) {
+                ++stringTableReads;
+            }
+        }
+        assertThat(stringTableReads, is(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsProgramHeaderTablePastEndOfFile() throws IOException {
+        final ByteBuffer elf = ElfFiles.build(false, false, "libc.so");
+        elf.putShort(0x2C, (short) 0xFFFE); // e_phnum
+        elfParser = new ElfParser(write(elf));
+        elfParser.parseNeededDependencies();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDynamicSectionPastEndOfFile() throws IOException {
+        final ByteBuffer elf = ElfFiles.build(true, false, "libc.so");
+        elf.putLong(0x40 + 0x38 + 0x20, 0x7FFFFFF0L); // p_filesz of PT_DYNAMIC
+        elfParser = new ElfParser(write(elf));
+        elfParser.parseNeededDependencies();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsStringTablePastEndOfFile() throws IOException {
+        final ByteBuffer elf = ElfFiles.build(false, true, "libc.so");
+        final int dynamicOffset = 0x34 + 2 * 0x20;
+        elf.putInt(dynamicOffset + 2 * 8 + 4, Integer.MAX_VALUE); // d_val of DT_STRSZ
+        elfParser = new ElfParser(write(elf));
+        elfParser.parseNeededDependencies();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsShortProgramHeaders32() throws IOException {
+        final ByteBuffer elf = ElfFiles.build(false, false, "libc.so");
+        elf.putShort(0x2A, (short) 0x10); // e_phentsize
+        elfParser = new ElfParser(write(elf));
+        elfParser.parseNeededDependencies();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsShortProgramHeaders64() throws IOException {
+        final ByteBuffer elf = ElfFiles.build(true, true, "libc.so");
+        elf.putShort(0x36, (short) 0x20); // e_phentsize
+        elfParser = new ElfParser(write(elf));
+        elfParser.parseNeededDependencies();
+    }
+
+    private File writeElf(final boolean is64, final boolean bigEndian, final String... needed)
+            throws IOException {
+        return write(ElfFiles.build(is64, bigEndian, needed));
+    }
+
+    private File write(final ByteBuffer elf) throws IOException {
+        return ElfFiles.write(tempFolder.newFile(), elf);
+    }
+
+    /**
+     * Records the offset and length of every read issued against the underlying file
+     */
+    private static class CountingElfParser extends ElfParser {
+        final List<long[]> reads = new ArrayList<long[]>();
+
+        CountingElfParser(final File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        protected void read(final ByteBuffer buffer, final long offset, final int length)
+                throws IOException {
+            reads.add(new long[] {offset, length});
+            super.read(buffer, offset, length);
+        }
+    }
+}